@@ -0,0 +1,90 @@
+/*
+ * Copyright (c) 2021 FalsePattern
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.falsepattern.jwin32.benchmark;
+
+import com.falsepattern.jwin32.memory.MemoryUtil;
+import jdk.incubator.foreign.MemoryAccess;
+import jdk.incubator.foreign.MemorySegment;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Writes and reads an int through the different accessor paths of {@link MemoryUtil}, compared to the panama
+ * {@link MemoryAccess} helpers.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = {"-Dforeign.restricted=permit", "--enable-native-access=ALL-UNNAMED", "--add-modules", "jdk.incubator.foreign"})
+@State(Scope.Thread)
+public class AccessorBenchmark {
+    private MemorySegment segment;
+    private long address;
+    private int value;
+
+    @Setup
+    public void setup() {
+        segment = MemoryUtil.MallocInt();
+        address = segment.address().toRawLongValue();
+    }
+
+    @TearDown
+    public void tearDown() {
+        MemoryUtil.Free(segment);
+    }
+
+    @Benchmark
+    @Threads(1)
+    public int segment() {
+        MemoryUtil.SetInt(segment, ++value);
+        return MemoryUtil.GetInt(segment);
+    }
+
+    @Benchmark
+    @Threads(Threads.MAX)
+    public int segmentAllThreads() {
+        MemoryUtil.SetInt(segment, ++value);
+        return MemoryUtil.GetInt(segment);
+    }
+
+    @Benchmark
+    @Threads(1)
+    public int address() {
+        MemoryUtil.SetInt(address, ++value);
+        return MemoryUtil.GetInt(address);
+    }
+
+    @Benchmark
+    @Threads(Threads.MAX)
+    public int addressAllThreads() {
+        MemoryUtil.SetInt(address, ++value);
+        return MemoryUtil.GetInt(address);
+    }
+
+    @Benchmark
+    public int memoryAccess() {
+        MemoryAccess.setInt(segment, ++value);
+        return MemoryAccess.getInt(segment);
+    }
+}
@@ -0,0 +1,98 @@
+/*
+ * Copyright (c) 2021 FalsePattern
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.falsepattern.jwin32.benchmark;
+
+import com.falsepattern.jwin32.memory.ConcurrentArena;
+import com.falsepattern.jwin32.memory.MemoryUtil;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Allocation throughput of {@link ConcurrentArena}, with and without per-thread sub-chunks, compared to
+ * {@link MemoryUtil}. Every iteration allocates a fixed batch per thread from a fresh arena, so the time per iteration
+ * staying flat between the single threaded and the all threads variants means allocation scales linearly with the
+ * cores. Run with {@code -t} to try other thread counts.
+ */
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, batchSize = ConcurrentArenaBenchmark.BATCH)
+@Measurement(iterations = 10, batchSize = ConcurrentArenaBenchmark.BATCH)
+@Fork(value = 1, jvmArgsAppend = {"-Dforeign.restricted=permit", "--enable-native-access=ALL-UNNAMED", "--add-modules", "jdk.incubator.foreign"})
+@State(Scope.Benchmark)
+public class ConcurrentArenaBenchmark {
+    static final int BATCH = 1_000_000;
+    private static final long SIZE = 16;
+
+    private ConcurrentArena cached;
+    private ConcurrentArena shared;
+
+    @Setup
+    public void setup() {
+        //Room for a full batch of every thread, plus the unused sub-chunk tails
+        var capacity = Runtime.getRuntime().availableProcessors() * BATCH * SIZE * 2;
+        cached = new ConcurrentArena(capacity, 64 * 1024);
+        shared = new ConcurrentArena(capacity);
+    }
+
+    @Setup(Level.Iteration)
+    public void reset() {
+        cached.reset();
+        shared.reset();
+    }
+
+    @TearDown
+    public void tearDown() {
+        cached.close();
+        shared.close();
+    }
+
+    @Benchmark
+    @Threads(1)
+    public long subChunks() {
+        return cached.nmallocAligned(SIZE, 8);
+    }
+
+    @Benchmark
+    @Threads(Threads.MAX)
+    public long subChunksAllThreads() {
+        return cached.nmallocAligned(SIZE, 8);
+    }
+
+    @Benchmark
+    @Threads(1)
+    public long sharedPointer() {
+        return shared.nmallocAligned(SIZE, 8);
+    }
+
+    @Benchmark
+    @Threads(Threads.MAX)
+    public long sharedPointerAllThreads() {
+        return shared.nmallocAligned(SIZE, 8);
+    }
+
+    @Benchmark
+    @Threads(Threads.MAX)
+    public void memoryUtilAllThreads() {
+        MemoryUtil.Free(MemoryUtil.instance.nmallocAligned(SIZE, 8));
+    }
+}
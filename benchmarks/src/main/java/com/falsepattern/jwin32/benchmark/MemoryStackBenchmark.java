@@ -0,0 +1,110 @@
+/*
+ * Copyright (c) 2021 FalsePattern
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.falsepattern.jwin32.benchmark;
+
+import com.falsepattern.jwin32.memory.MemoryStack;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Push/pop round trips on the thread local {@link MemoryStack} and on stacks leased from the shared pool, with a
+ * varying amount of allocations per frame.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = {"-Dforeign.restricted=permit", "--enable-native-access=ALL-UNNAMED", "--add-modules", "jdk.incubator.foreign"})
+@State(Scope.Thread)
+public class MemoryStackBenchmark {
+    @Param({"0", "1", "4", "16"})
+    public int allocations;
+
+    @Benchmark
+    @Threads(1)
+    public void malloc(Blackhole blackhole) {
+        mallocFrame(blackhole);
+    }
+
+    @Benchmark
+    @Threads(Threads.MAX)
+    public void mallocAllThreads(Blackhole blackhole) {
+        mallocFrame(blackhole);
+    }
+
+    @Benchmark
+    @Threads(Threads.MAX)
+    public void leaseAllThreads(Blackhole blackhole) {
+        try (var stack = MemoryStack.lease()) {
+            for (int i = 0; i < allocations; i++) {
+                blackhole.consume(stack.mallocInt());
+            }
+        }
+    }
+
+    @Benchmark
+    public void calloc(Blackhole blackhole) {
+        try (var stack = MemoryStack.stackPush()) {
+            for (int i = 0; i < allocations; i++) {
+                blackhole.consume(stack.callocInt());
+            }
+        }
+    }
+
+    @Benchmark
+    public void nmalloc(Blackhole blackhole) {
+        try (var stack = MemoryStack.stackPush()) {
+            for (int i = 0; i < allocations; i++) {
+                blackhole.consume(stack.nmallocAligned(4, 4));
+            }
+        }
+    }
+
+    @Benchmark
+    public void scope(Blackhole blackhole) {
+        try (var stack = MemoryStack.stackPush()) {
+            blackhole.consume(stack.scope());
+            for (int i = 0; i < allocations; i++) {
+                blackhole.consume(stack.mallocInt());
+            }
+        }
+    }
+
+    @Benchmark
+    public void toCString(Blackhole blackhole) {
+        try (var stack = MemoryStack.stackPush()) {
+            for (int i = 0; i < allocations; i++) {
+                blackhole.consume(stack.toCString("TEXCOORD"));
+            }
+        }
+    }
+
+    private void mallocFrame(Blackhole blackhole) {
+        try (var stack = MemoryStack.stackPush()) {
+            for (int i = 0; i < allocations; i++) {
+                blackhole.consume(stack.mallocInt());
+            }
+        }
+    }
+}
@@ -0,0 +1,88 @@
+/*
+ * Copyright (c) 2021 FalsePattern
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.falsepattern.jwin32.benchmark;
+
+import com.falsepattern.jwin32.memory.MemoryUtil;
+import jdk.incubator.foreign.MemorySegment;
+import jdk.incubator.foreign.ResourceScope;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Allocation/free round trips through {@link MemoryUtil}, on a single thread and on every core at once. Compare the
+ * two to see how the allocation registry scales, or run with <code>-t 1,2,4,8</code> for the full curve.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = {"-Dforeign.restricted=permit", "--enable-native-access=ALL-UNNAMED", "--add-modules", "jdk.incubator.foreign"})
+@State(Scope.Thread)
+public class MemoryUtilBenchmark {
+    @Param({"16", "256"})
+    public long size;
+
+    @Benchmark
+    @Threads(1)
+    public long mallocFreeSingleThread() {
+        return mallocFree();
+    }
+
+    @Benchmark
+    @Threads(Threads.MAX)
+    public long mallocFreeAllThreads() {
+        return mallocFree();
+    }
+
+    @Benchmark
+    @Threads(1)
+    public long confinedScopeSingleThread() {
+        return confinedScope();
+    }
+
+    @Benchmark
+    @Threads(Threads.MAX)
+    public long confinedScopeAllThreads() {
+        return confinedScope();
+    }
+
+    @Benchmark
+    public long callocFree() {
+        var address = MemoryUtil.instance.ncalloc(size);
+        MemoryUtil.Free(address);
+        return address;
+    }
+
+    private long mallocFree() {
+        var address = MemoryUtil.instance.nmalloc(size);
+        MemoryUtil.Free(address);
+        return address;
+    }
+
+    //The allocation strategy MemoryUtil used to have: one scope per block
+    private long confinedScope() {
+        try (var scope = ResourceScope.newConfinedScope()) {
+            return MemorySegment.allocateNative(size, 1, scope).address().toRawLongValue();
+        }
+    }
+}
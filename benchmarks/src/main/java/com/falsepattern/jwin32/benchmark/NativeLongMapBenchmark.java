@@ -0,0 +1,112 @@
+/*
+ * Copyright (c) 2021 FalsePattern
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.falsepattern.jwin32.benchmark;
+
+import com.falsepattern.jwin32.memory.ConcurrentNativeLongMap;
+import com.falsepattern.jwin32.memory.MemoryUtil;
+import com.falsepattern.jwin32.memory.NativeLongMap;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.HashMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Handle lookups in {@link NativeLongMap} and {@link ConcurrentNativeLongMap}, compared to boxed {@link HashMap} and
+ * {@link ConcurrentHashMap} lookups.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = {"-Dforeign.restricted=permit", "--enable-native-access=ALL-UNNAMED", "--add-modules", "jdk.incubator.foreign"})
+@State(Scope.Benchmark)
+public class NativeLongMapBenchmark {
+    @Param({"1000", "1000000"})
+    public int entries;
+
+    private long[] keys;
+    private NativeLongMap nativeMap;
+    private ConcurrentNativeLongMap concurrentNativeMap;
+    private HashMap<Long, Long> hashMap;
+    private ConcurrentHashMap<Long, Long> concurrentHashMap;
+
+    @State(Scope.Thread)
+    public static class Cursor {
+        int index;
+    }
+
+    @Setup
+    public void setup() {
+        keys = new long[entries];
+        nativeMap = new NativeLongMap(MemoryUtil.instance, entries);
+        concurrentNativeMap = new ConcurrentNativeLongMap(MemoryUtil.instance, entries);
+        hashMap = new HashMap<>();
+        concurrentHashMap = new ConcurrentHashMap<>();
+        for (int i = 0; i < entries; i++) {
+            //Handle-like keys, aligned and spread out
+            var key = 0x10000L + i * 0x40L;
+            keys[i] = key;
+            nativeMap.put(key, i);
+            concurrentNativeMap.put(key, i);
+            hashMap.put(key, (long) i);
+            concurrentHashMap.put(key, (long) i);
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        nativeMap.close();
+        concurrentNativeMap.close();
+    }
+
+    private long next(Cursor cursor) {
+        var index = cursor.index + 1;
+        if (index == keys.length) index = 0;
+        cursor.index = index;
+        return keys[index];
+    }
+
+    @Benchmark
+    @Threads(1)
+    public long nativeMap(Cursor cursor) {
+        return nativeMap.get(next(cursor), -1);
+    }
+
+    @Benchmark
+    @Threads(1)
+    public Long hashMap(Cursor cursor) {
+        return hashMap.get(next(cursor));
+    }
+
+    @Benchmark
+    @Threads(Threads.MAX)
+    public long concurrentNativeMapAllThreads(Cursor cursor) {
+        return concurrentNativeMap.get(next(cursor), -1);
+    }
+
+    @Benchmark
+    @Threads(Threads.MAX)
+    public Long concurrentHashMapAllThreads(Cursor cursor) {
+        return concurrentHashMap.get(next(cursor));
+    }
+}
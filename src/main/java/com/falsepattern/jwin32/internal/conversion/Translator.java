@@ -172,6 +172,8 @@ public class Translator {
         Files.writeString(Path.of("./src/main/java/module-info.java"), """
                 module jwin32_ {
                     requires transitive jdk.incubator.foreign;
+                    requires jdk.jfr;
+                    requires java.management;
                     exports com.falsepattern.jwin32.memory;
                 """ + (comObjects.size() > 0 ? "    exports win32.mapped.com;" : "") + """
                     exports win32.mapped.constants;
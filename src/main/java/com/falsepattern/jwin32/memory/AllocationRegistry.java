@@ -0,0 +1,208 @@
+/*
+ * Copyright (c) 2021 FalsePattern
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.falsepattern.jwin32.memory;
+
+/**
+ * Thread safe bookkeeping for the blocks handed out by {@link MemoryUtil}. Blocks are keyed by their (aligned) base
+ * address, and spread over lock striped open addressing tables, so allocating and freeing from different threads
+ * rarely contends, and neither operation allocates on the heap.
+ */
+final class AllocationRegistry {
+    private static final int STRIPES = Integer.highestOneBit(Math.max(16, Runtime.getRuntime().availableProcessors() * 4) - 1) << 1;
+
+    private final Stripe[] stripes = new Stripe[STRIPES];
+
+    AllocationRegistry() {
+        for (int i = 0; i < STRIPES; i++) {
+            stripes[i] = new Stripe();
+        }
+    }
+
+    static int hash(long address) {
+        //Murmur3 finalizer, the low bits of aligned addresses are always zero
+        address ^= address >>> 33;
+        address *= 0xff51afd7ed558ccdL;
+        address ^= address >>> 33;
+        address *= 0xc4ceb9fe1a85ec53L;
+        address ^= address >>> 33;
+        return (int) address;
+    }
+
+    private Stripe stripe(int hash) {
+        return stripes[(hash >>> 24) & (STRIPES - 1)];
+    }
+
+    /**
+     * Records a new block.
+     * @param address The address handed out to the user
+     * @param base The address returned by {@link NativeHeap}, which must be passed to {@link NativeHeap#free(long)}
+     * @param size The usable size of the block
+     * @param account The budget account the block was charged to, or null
+     */
+    void register(long address, long base, long size, MemoryBudget.Account account) {
+        var hash = hash(address);
+        var stripe = stripe(hash);
+        synchronized (stripe) {
+            stripe.put(hash, address, base, size, account);
+        }
+    }
+
+    /**
+     * Removes a block from the registry, and releases its native memory and its budget charge.
+     * @param address The address handed out to the user
+     * @return The size of the released block, or -1 if the address is not (or no longer) registered
+     */
+    long release(long address) {
+        var hash = hash(address);
+        var stripe = stripe(hash);
+        long base;
+        long size;
+        MemoryBudget.Account account;
+        synchronized (stripe) {
+            var slot = stripe.find(hash, address);
+            if (slot < 0) return -1;
+            base = stripe.bases[slot];
+            size = stripe.sizes[slot];
+            account = stripe.accounts[slot];
+            stripe.delete(slot);
+        }
+        NativeHeap.free(base);
+        if (account != null) account.release(size);
+        return size;
+    }
+
+    /**
+     * @param address The address handed out to the user
+     * @return The size of the block, or -1 if the address is not registered
+     */
+    long sizeOf(long address) {
+        var hash = hash(address);
+        var stripe = stripe(hash);
+        synchronized (stripe) {
+            var slot = stripe.find(hash, address);
+            return slot < 0 ? -1 : stripe.sizes[slot];
+        }
+    }
+
+    /**
+     * @return The total size of every registered block. Only a snapshot, as the stripes are read one by one.
+     */
+    long liveBytes() {
+        long total = 0;
+        for (var stripe : stripes) {
+            synchronized (stripe) {
+                total += stripe.liveBytes;
+            }
+        }
+        return total;
+    }
+
+    /**
+     * @return The number of registered blocks. Only a snapshot, as the stripes are read one by one.
+     */
+    long liveBlocks() {
+        long total = 0;
+        for (var stripe : stripes) {
+            synchronized (stripe) {
+                total += stripe.count;
+            }
+        }
+        return total;
+    }
+
+    /**
+     * A linear probing table with backward shift deletion. Empty slots have a key of 0, which is never a valid block
+     * address.
+     */
+    private static final class Stripe {
+        private static final int INITIAL_CAPACITY = 64;
+
+        long[] keys = new long[INITIAL_CAPACITY];
+        long[] bases = new long[INITIAL_CAPACITY];
+        long[] sizes = new long[INITIAL_CAPACITY];
+        MemoryBudget.Account[] accounts = new MemoryBudget.Account[INITIAL_CAPACITY];
+        int count;
+        long liveBytes;
+
+        int find(int hash, long address) {
+            var mask = keys.length - 1;
+            for (int i = hash & mask; ; i = (i + 1) & mask) {
+                var key = keys[i];
+                if (key == address) return i;
+                if (key == 0) return -1;
+            }
+        }
+
+        void put(int hash, long address, long base, long size, MemoryBudget.Account account) {
+            if ((count + 1) * 2 > keys.length) resize();
+            var mask = keys.length - 1;
+            var i = hash & mask;
+            while (keys[i] != 0) {
+                i = (i + 1) & mask;
+            }
+            keys[i] = address;
+            bases[i] = base;
+            sizes[i] = size;
+            accounts[i] = account;
+            count++;
+            liveBytes += size;
+        }
+
+        void delete(int slot) {
+            count--;
+            liveBytes -= sizes[slot];
+            var mask = keys.length - 1;
+            var hole = slot;
+            for (int i = (slot + 1) & mask; keys[i] != 0; i = (i + 1) & mask) {
+                var home = hash(keys[i]) & mask;
+                //Move the entry into the hole if the hole lies cyclically between its home slot and its current slot
+                if (((i - home) & mask) >= ((i - hole) & mask)) {
+                    keys[hole] = keys[i];
+                    bases[hole] = bases[i];
+                    sizes[hole] = sizes[i];
+                    accounts[hole] = accounts[i];
+                    hole = i;
+                }
+            }
+            keys[hole] = 0;
+            accounts[hole] = null;
+        }
+
+        private void resize() {
+            var oldKeys = keys;
+            var oldBases = bases;
+            var oldSizes = sizes;
+            var oldAccounts = accounts;
+            keys = new long[oldKeys.length * 2];
+            bases = new long[oldKeys.length * 2];
+            sizes = new long[oldKeys.length * 2];
+            accounts = new MemoryBudget.Account[oldKeys.length * 2];
+            count = 0;
+            liveBytes = 0;
+            for (int i = 0; i < oldKeys.length; i++) {
+                if (oldKeys[i] != 0) {
+                    put(hash(oldKeys[i]), oldKeys[i], oldBases[i], oldSizes[i], oldAccounts[i]);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,262 @@
+/*
+ * Copyright (c) 2021 FalsePattern
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.falsepattern.jwin32.memory;
+
+import jdk.incubator.foreign.MemoryAddress;
+import jdk.incubator.foreign.MemorySegment;
+import jdk.incubator.foreign.ResourceScope;
+
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A lock-free bump allocator over a single shared segment, for building data on several threads that another thread
+ * reads afterwards, such as per-thread command lists. Allocating moves a bump pointer with a compare-and-set, so it
+ * never blocks, and every segment can be accessed from any thread.
+ * <p>
+ * With a sub-chunk size, every thread grabs a whole sub-chunk at a time, and bumps inside it without touching the
+ * shared pointer at all, so allocation scales with the amount of threads. Sub-chunks are aligned to cache lines, so
+ * the data of different threads never shares one. The bump pointer itself is stored in the segment, on its own cache
+ * line. The unused rest of a dead thread's sub-chunk is adopted by the next thread that starts allocating, or that
+ * finds the arena full.
+ * <p>
+ * {@link #reset()} reclaims every allocation at once, but must not run concurrently with allocations. Closing the arena
+ * releases the segment, which invalidates every segment it handed out.
+ */
+public final class ConcurrentArena implements MemoryAllocator, AutoCloseable {
+    public static final long CACHE_LINE = 64;
+    //The bump pointer gets two cache lines, to keep adjacent line prefetching away from the data
+    private static final long HEADER_SIZE = 2 * CACHE_LINE;
+    private static final long TOP_OFFSET = 0;
+
+    private final ResourceScope scope = ResourceScope.newSharedScope();
+    private final MemorySegment segment;
+    private final long baseAddress;
+    private final long capacity;
+    private final long subChunkSize;
+    private final ThreadLocal<SubChunk> subChunks;
+    //Every sub-chunk of a thread that may still be alive, so the ones of dead threads can be adopted
+    private final List<SubChunk> registry = new ArrayList<>();
+    //Incremented on every reset, so the threads drop their stale sub-chunks
+    private volatile int epoch;
+
+    /**
+     * Creates an arena without per-thread sub-chunks, where every allocation bumps the shared pointer.
+     * @param capacity The size of the arena, in bytes
+     */
+    public ConcurrentArena(long capacity) {
+        this(capacity, 0);
+    }
+
+    /**
+     * @param capacity The size of the arena, in bytes
+     * @param subChunkSize The size of the per-thread sub-chunks, or 0 to disable them. Allocations larger than a
+     *                     quarter of this bypass the sub-chunks.
+     */
+    public ConcurrentArena(long capacity, long subChunkSize) {
+        if (capacity <= 0) throw new IllegalArgumentException("Arena capacity must be positive, got " + capacity);
+        if (subChunkSize < 0) throw new IllegalArgumentException("Sub-chunk size must not be negative, got " + subChunkSize);
+        this.capacity = capacity;
+        this.subChunkSize = (subChunkSize + CACHE_LINE - 1) & -CACHE_LINE;
+        this.segment = MemorySegment.allocateNative(HEADER_SIZE + capacity, 0x1000, scope);
+        this.baseAddress = segment.address().toRawLongValue() + HEADER_SIZE;
+        this.subChunks = subChunkSize == 0 ? null : ThreadLocal.withInitial(this::register);
+    }
+
+    /**
+     * Bumps the shared pointer past a new allocation.
+     * @return The offset of the allocation, or -1 if the arena is full
+     */
+    private long bumpShared(long size, long alignment) {
+        while (true) {
+            var top = (long) MemoryUtil.VH_LONG.getVolatile(segment, TOP_OFFSET);
+            var misalignment = (baseAddress + top) % alignment;
+            var start = misalignment == 0 ? top : top + alignment - misalignment;
+            if (start + size > capacity) return -1;
+            if (MemoryUtil.VH_LONG.compareAndSet(segment, TOP_OFFSET, top, start + size)) return start;
+        }
+    }
+
+    private long bump(long size, long alignment) {
+        if (alignment <= 0) throw new IllegalArgumentException("Tried to allocate with non-positive alignment " + alignment);
+        long start;
+        if (subChunks == null || size > subChunkSize / 4 || alignment > CACHE_LINE) {
+            start = bumpShared(size, alignment);
+        } else {
+            start = subChunks.get().bump(this, size, alignment);
+        }
+        if (start < 0) {
+            throw new IllegalStateException("Concurrent arena is full! Tried to allocate " + size + " bytes out of " + capacity);
+        }
+        MemoryEvents.allocation(MemoryEvents.CONCURRENT_ARENA, baseAddress + start, size, alignment);
+        return start;
+    }
+
+    @Override
+    public MemorySegment mallocAligned(long size, long alignment) {
+        var start = bump(size, alignment);
+        if (MemoryChecks.UNCHECKED) {
+            return MemoryAddress.ofLong(baseAddress + start).asSegment(size, ResourceScope.globalScope());
+        }
+        return segment.asSlice(HEADER_SIZE + start, size);
+    }
+
+    @Override
+    public MemorySegment malloc(long size) {
+        return mallocAligned(size, 1);
+    }
+
+    @Override
+    public long nmallocAligned(long size, long alignment) {
+        return baseAddress + bump(size, alignment);
+    }
+
+    @Override
+    public long nmalloc(long size) {
+        return nmallocAligned(size, 1);
+    }
+
+    /**
+     * @return The amount of bytes handed out so far, including alignment padding and the unused tails of sub-chunks.
+     *         Only a snapshot.
+     */
+    public long usedBytes() {
+        return (long) MemoryUtil.VH_LONG.getVolatile(segment, TOP_OFFSET);
+    }
+
+    /**
+     * @return The size of the arena, in bytes
+     */
+    public long capacity() {
+        return capacity;
+    }
+
+    /**
+     * Releases every allocation at once. Must not be called while other threads are allocating from the arena, and
+     * the threads must see the reset (through a lock or a volatile write, for example) before allocating again.
+     */
+    public void reset() {
+        epoch++;
+        MemoryUtil.VH_LONG.setVolatile(segment, TOP_OFFSET, 0L);
+    }
+
+    /**
+     * Releases the segment of the arena. Segments allocated from this arena can no longer be accessed afterwards. The
+     * sub-chunks don't reference the arena, so the ones other threads still hold become garbage together with it.
+     */
+    @Override
+    public void close() {
+        if (subChunks != null) {
+            synchronized (registry) {
+                registry.clear();
+            }
+            subChunks.remove();
+        }
+        scope.close();
+    }
+
+    private SubChunk register() {
+        var subChunk = new SubChunk(Thread.currentThread());
+        synchronized (registry) {
+            adoptOrphan(subChunk);
+            registry.add(subChunk);
+        }
+        return subChunk;
+    }
+
+    /**
+     * Moves the unused rest of a dead thread's sub-chunk into the given one, and forgets every dead thread's sub-chunk.
+     * Must hold the registry lock.
+     * @return True if a range was adopted
+     */
+    private boolean adoptOrphan(SubChunk into) {
+        var adopted = false;
+        var currentEpoch = epoch;
+        for (var iterator = registry.iterator(); iterator.hasNext(); ) {
+            var orphan = iterator.next();
+            if (orphan.isAlive()) continue;
+            iterator.remove();
+            //The owner died, so its last writes to the sub-chunk are visible
+            if (!adopted && orphan.epoch == currentEpoch && orphan.cursor < orphan.end) {
+                into.epoch = currentEpoch;
+                into.cursor = orphan.cursor;
+                into.end = orphan.end;
+                adopted = true;
+            }
+        }
+        return adopted;
+    }
+
+    /**
+     * The part of the arena a thread is currently bumping in, as offsets. Static, so the value held by the thread local
+     * doesn't keep the arena (and with it, the thread local itself) reachable.
+     */
+    private static final class SubChunk {
+        private final WeakReference<Thread> owner;
+        private long cursor;
+        private long end;
+        private int epoch = -1;
+
+        SubChunk(Thread owner) {
+            this.owner = new WeakReference<>(owner);
+        }
+
+        boolean isAlive() {
+            var thread = owner.get();
+            return thread != null && thread.isAlive();
+        }
+
+        long bump(ConcurrentArena arena, long size, long alignment) {
+            if (epoch != arena.epoch) {
+                epoch = arena.epoch;
+                cursor = end = 0;
+            }
+            var start = align(arena, cursor, alignment);
+            if (start + size > end) {
+                var chunk = arena.bumpShared(arena.subChunkSize, CACHE_LINE);
+                if (chunk >= 0) {
+                    cursor = chunk;
+                    end = chunk + arena.subChunkSize;
+                    start = cursor;
+                } else {
+                    boolean adopted;
+                    synchronized (arena.registry) {
+                        adopted = arena.adoptOrphan(this);
+                    }
+                    start = align(arena, cursor, alignment);
+                    if (!adopted || start + size > end) {
+                        //Not enough room for a whole sub-chunk, the allocation may still fit on its own
+                        return arena.bumpShared(size, alignment);
+                    }
+                }
+            }
+            cursor = start + size;
+            return start;
+        }
+
+        private static long align(ConcurrentArena arena, long offset, long alignment) {
+            var misalignment = (arena.baseAddress + offset) % alignment;
+            return misalignment == 0 ? offset : offset + alignment - misalignment;
+        }
+    }
+}
@@ -0,0 +1,145 @@
+/*
+ * Copyright (c) 2021 FalsePattern
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.falsepattern.jwin32.memory;
+
+/**
+ * A thread safe {@link NativeLongMap}. The keys are spread over lock striped maps, so threads working on different
+ * keys rarely contend. Like the single threaded map, lookups and updates don't allocate on the heap.
+ */
+public final class ConcurrentNativeLongMap implements AutoCloseable {
+    private static final int STRIPES = Integer.highestOneBit(Math.max(16, Runtime.getRuntime().availableProcessors() * 4) - 1) << 1;
+
+    private final NativeLongMap[] stripes = new NativeLongMap[STRIPES];
+
+    /**
+     * Creates a map that takes its tables from {@link MemoryUtil#instance}.
+     */
+    public ConcurrentNativeLongMap() {
+        this(MemoryUtil.instance, 0);
+    }
+
+    /**
+     * @param allocator The allocator the tables are taken from. It must be thread safe, and should be able to free
+     *                  individual blocks.
+     * @param expectedSize The amount of entries the map can hold before it has to grow
+     */
+    public ConcurrentNativeLongMap(MemoryAllocator allocator, long expectedSize) {
+        for (int i = 0; i < STRIPES; i++) {
+            stripes[i] = new NativeLongMap(allocator, expectedSize / STRIPES);
+        }
+    }
+
+    private NativeLongMap stripe(long key) {
+        return stripes[(AllocationRegistry.hash(key) >>> 24) & (STRIPES - 1)];
+    }
+
+    /**
+     * @return The amount of entries in the map. Only a snapshot, as the stripes are read one by one.
+     */
+    public long size() {
+        long total = 0;
+        for (var stripe : stripes) {
+            synchronized (stripe) {
+                total += stripe.size();
+            }
+        }
+        return total;
+    }
+
+    public boolean containsKey(long key) {
+        var stripe = stripe(key);
+        synchronized (stripe) {
+            return stripe.containsKey(key);
+        }
+    }
+
+    /**
+     * @see NativeLongMap#get(long, long)
+     */
+    public long get(long key, long defaultValue) {
+        var stripe = stripe(key);
+        synchronized (stripe) {
+            return stripe.get(key, defaultValue);
+        }
+    }
+
+    /**
+     * @see NativeLongMap#put(long, long)
+     */
+    public boolean put(long key, long value) {
+        var stripe = stripe(key);
+        synchronized (stripe) {
+            return stripe.put(key, value);
+        }
+    }
+
+    /**
+     * Sets the value of the key, unless it's already in the map.
+     * @return True if the key was added
+     */
+    public boolean putIfAbsent(long key, long value) {
+        var stripe = stripe(key);
+        synchronized (stripe) {
+            return !stripe.containsKey(key) && stripe.put(key, value);
+        }
+    }
+
+    /**
+     * @see NativeLongMap#remove(long)
+     */
+    public boolean remove(long key) {
+        var stripe = stripe(key);
+        synchronized (stripe) {
+            return stripe.remove(key);
+        }
+    }
+
+    /**
+     * Calls the action with every entry, stripe by stripe. Each stripe is locked while it's iterated, so the action
+     * must not modify the map.
+     * @param action The action to call
+     */
+    public void forEach(NativeLongMap.LongLongConsumer action) {
+        for (var stripe : stripes) {
+            synchronized (stripe) {
+                stripe.forEach(action);
+            }
+        }
+    }
+
+    public void clear() {
+        for (var stripe : stripes) {
+            synchronized (stripe) {
+                stripe.clear();
+            }
+        }
+    }
+
+    @Override
+    public void close() {
+        for (var stripe : stripes) {
+            synchronized (stripe) {
+                stripe.close();
+            }
+        }
+    }
+}
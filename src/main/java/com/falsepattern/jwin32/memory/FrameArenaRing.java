@@ -0,0 +1,236 @@
+/*
+ * Copyright (c) 2021 FalsePattern
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.falsepattern.jwin32.memory;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.LongSupplier;
+
+/**
+ * A ring of {@link MemoryArena}s for data that stays in use after the frame that wrote it, such as upload buffers read
+ * by the GPU while the next frames are recorded. Every frame gets the next arena in the ring, tagged with the frame's
+ * epoch, and an arena is only reset and reused once the fence reports that its epoch completed. Once every arena has
+ * grown to the size a frame needs, frames don't allocate any native or heap memory.
+ * <p>
+ * The fence is a counter of the last completed epoch, supplied by the caller (for example by reading a GPU fence), or
+ * advanced with {@link #signal(long)}. Epochs start at 1, so a fence value of 0 means no frame completed yet. When the
+ * next arena is still in use, {@link #beginFrame()} waits for the fence, and records the time spent waiting in the
+ * stall statistics.
+ * <p>
+ * Frames must be begun by a single thread at a time, while the fence may be signalled from any thread.
+ */
+public final class FrameArenaRing implements AutoCloseable {
+    //Spin a little before parking, fences usually complete soon after they're waited on
+    private static final int SPINS = 100;
+    private static final long PARK_NANOS = TimeUnit.MICROSECONDS.toNanos(50);
+
+    private final MemoryArena[] arenas;
+    private final long[] epochs;
+    private final AtomicLong signalled = new AtomicLong();
+    private final LongSupplier fence;
+    private long epoch;
+    private MemoryArena current;
+
+    private volatile long stallCount;
+    private volatile long stallNanos;
+    private volatile long maxStallNanos;
+
+    /**
+     * Creates a ring whose fence is advanced with {@link #signal(long)}.
+     * @param frames The amount of frames that can be in flight at once
+     * @param blockSize The block size of the arenas, see {@link MemoryArena#MemoryArena(long)}
+     */
+    public FrameArenaRing(int frames, long blockSize) {
+        this(frames, blockSize, null);
+    }
+
+    /**
+     * @param frames The amount of frames that can be in flight at once
+     * @param blockSize The block size of the arenas, see {@link MemoryArena#MemoryArena(long)}
+     * @param fence Supplies the last completed epoch. Must never decrease. If null, the fence is advanced with
+     *              {@link #signal(long)}.
+     */
+    public FrameArenaRing(int frames, long blockSize, LongSupplier fence) {
+        if (frames <= 0) throw new IllegalArgumentException("Frame count must be positive, got " + frames);
+        this.arenas = new MemoryArena[frames];
+        this.epochs = new long[frames];
+        for (int i = 0; i < frames; i++) {
+            arenas[i] = new MemoryArena(blockSize);
+        }
+        this.fence = fence == null ? signalled::get : fence;
+    }
+
+    /**
+     * Marks every epoch up to the given one as completed. Only used if the ring was created without a fence supplier.
+     * @param completedEpoch The last completed epoch
+     */
+    public void signal(long completedEpoch) {
+        signalled.accumulateAndGet(completedEpoch, Math::max);
+    }
+
+    /**
+     * @return The last completed epoch, according to the fence
+     */
+    public long completedEpoch() {
+        return fence.getAsLong();
+    }
+
+    private int slot(long epoch) {
+        return (int) ((epoch - 1) % arenas.length);
+    }
+
+    /**
+     * Starts a new frame, waiting for the fence if its arena is still in use.
+     * @return The arena of the new frame, which stays valid until the fence passes {@link #epoch()}
+     */
+    public MemoryArena beginFrame() {
+        var slot = slot(epoch + 1);
+        if (epochs[slot] > fence.getAsLong()) {
+            var start = System.nanoTime();
+            for (int spins = 0; epochs[slot] > fence.getAsLong(); spins++) {
+                if (spins < SPINS) {
+                    Thread.onSpinWait();
+                } else {
+                    LockSupport.parkNanos(PARK_NANOS);
+                }
+            }
+            recordStall(System.nanoTime() - start);
+        }
+        return advance(slot);
+    }
+
+    /**
+     * Starts a new frame, waiting for the fence at most for the given time.
+     * @return The arena of the new frame, or null if its arena was still in use after the timeout
+     */
+    public MemoryArena beginFrame(long timeout, TimeUnit unit) {
+        var slot = slot(epoch + 1);
+        if (epochs[slot] > fence.getAsLong()) {
+            var start = System.nanoTime();
+            var deadline = start + unit.toNanos(timeout);
+            for (int spins = 0; epochs[slot] > fence.getAsLong(); spins++) {
+                var now = System.nanoTime();
+                if (now - deadline >= 0) {
+                    recordStall(now - start);
+                    return null;
+                }
+                if (spins < SPINS) {
+                    Thread.onSpinWait();
+                } else {
+                    LockSupport.parkNanos(Math.min(PARK_NANOS, deadline - now));
+                }
+            }
+            recordStall(System.nanoTime() - start);
+        }
+        return advance(slot);
+    }
+
+    /**
+     * Starts a new frame if its arena is free, without waiting.
+     * @return The arena of the new frame, or null if its arena is still in use
+     */
+    public MemoryArena tryBeginFrame() {
+        var slot = slot(epoch + 1);
+        if (epochs[slot] > fence.getAsLong()) return null;
+        return advance(slot);
+    }
+
+    private MemoryArena advance(int slot) {
+        var arena = arenas[slot];
+        arena.reset();
+        epochs[slot] = ++epoch;
+        current = arena;
+        return arena;
+    }
+
+    private void recordStall(long nanos) {
+        stallCount++;
+        stallNanos += nanos;
+        if (nanos > maxStallNanos) maxStallNanos = nanos;
+    }
+
+    /**
+     * @return The epoch of the current frame, which the fence has to reach before its arena is reused. 0 before the
+     *         first frame.
+     */
+    public long epoch() {
+        return epoch;
+    }
+
+    /**
+     * @return The arena of the current frame, or null before the first frame
+     */
+    public MemoryArena current() {
+        return current;
+    }
+
+    /**
+     * @return The amount of frames that are begun but not completed, according to the fence
+     */
+    public long framesInFlight() {
+        return Math.max(0, epoch - fence.getAsLong());
+    }
+
+    /**
+     * @return The amount of times {@link #beginFrame()} had to wait for the fence
+     */
+    public long stallCount() {
+        return stallCount;
+    }
+
+    /**
+     * @return The total time spent waiting for the fence, in nanoseconds
+     */
+    public long stallNanos() {
+        return stallNanos;
+    }
+
+    /**
+     * @return The longest single wait for the fence, in nanoseconds
+     */
+    public long maxStallNanos() {
+        return maxStallNanos;
+    }
+
+    /**
+     * @return The total amount of native memory reserved by the arenas, in bytes
+     */
+    public long reservedBytes() {
+        long total = 0;
+        for (var arena : arenas) {
+            total += arena.reservedBytes();
+        }
+        return total;
+    }
+
+    /**
+     * Closes every arena, whether or not the fence passed its epoch. The caller has to make sure nothing reads the
+     * frames anymore.
+     */
+    @Override
+    public void close() {
+        for (var arena : arenas) {
+            arena.close();
+        }
+    }
+}
@@ -0,0 +1,347 @@
+/*
+ * Copyright (c) 2021 FalsePattern
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.falsepattern.jwin32.memory;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * The memory layout of an HLSL constant buffer or vertex format, with every field offset computed once up front.
+ * Constant buffers follow the HLSL packing rules: fields are packed into 16 byte registers, a field never straddles
+ * a register boundary, and arrays, matrices and every array element start on a new register. Vertex formats are
+ * packed tightly, like input layouts declared with {@code D3D11_APPEND_ALIGNED_ELEMENT}.
+ * <p>
+ * Layouts are immutable and can be shared between threads. Data is written with an {@link HlslWriter}.
+ */
+public final class HlslLayout {
+    /**
+     * The size of a constant buffer register in bytes.
+     */
+    public static final int REGISTER_SIZE = 16;
+
+    private final Packing packing;
+    private final List<Field> fields;
+    private final Map<String, Field> byName;
+    private final int size;
+
+    private HlslLayout(Packing packing, List<Field> fields, int size) {
+        this.packing = packing;
+        this.fields = Collections.unmodifiableList(fields);
+        this.byName = new HashMap<>();
+        for (var field : fields) {
+            byName.put(field.name, field);
+        }
+        this.size = size;
+    }
+
+    /**
+     * @return A builder for a constant buffer layout
+     */
+    public static Builder cbuffer() {
+        return new Builder(Packing.CBUFFER);
+    }
+
+    /**
+     * @return A builder for a tightly packed vertex format
+     */
+    public static Builder vertex() {
+        return new Builder(Packing.VERTEX);
+    }
+
+    public Packing packing() {
+        return packing;
+    }
+
+    /**
+     * @return The fields in declaration order
+     */
+    public List<Field> fields() {
+        return fields;
+    }
+
+    /**
+     * @param name The name the field was declared with
+     * @return The field
+     * @throws IllegalArgumentException If the layout has no field with this name
+     */
+    public Field field(String name) {
+        var field = byName.get(name);
+        if (field == null) throw new IllegalArgumentException("No field named " + name + " in " + this);
+        return field;
+    }
+
+    /**
+     * @param field The field to look for
+     * @return True if the field was declared by this layout, and not just by one with the same field names
+     */
+    public boolean contains(Field field) {
+        return byName.get(field.name) == field;
+    }
+
+    /**
+     * @param name The name the field was declared with
+     * @return The byte offset of the field inside an element
+     */
+    public int offsetOf(String name) {
+        return field(name).offset;
+    }
+
+    /**
+     * The size of one element. Constant buffers are rounded up to a whole register, as D3D requires their size to
+     * be a multiple of 16 bytes; vertex formats are not padded, so this is the vertex stride.
+     * @return The size of one element in bytes
+     */
+    public int size() {
+        return size;
+    }
+
+    @Override
+    public String toString() {
+        var builder = new StringBuilder(packing == Packing.CBUFFER ? "cbuffer {" : "vertex {");
+        for (var field : fields) {
+            builder.append(' ').append(field).append(';');
+        }
+        return builder.append(" } (").append(size).append(" bytes)").toString();
+    }
+
+    public enum Packing {
+        /**
+         * 16 byte register packing of constant buffers.
+         */
+        CBUFFER,
+        /**
+         * Tight packing of vertex (and instance) data.
+         */
+        VERTEX
+    }
+
+    /**
+     * The component type of a field.
+     */
+    public enum Scalar {
+        FLOAT,
+        INT,
+        UINT,
+        /**
+         * HLSL bools are 4 bytes wide, 0 or 1.
+         */
+        BOOL
+    }
+
+    /**
+     * The HLSL numeric types a field can have.
+     */
+    public enum Type {
+        FLOAT(Scalar.FLOAT, 1, 1), FLOAT2(Scalar.FLOAT, 1, 2), FLOAT3(Scalar.FLOAT, 1, 3), FLOAT4(Scalar.FLOAT, 1, 4),
+        INT(Scalar.INT, 1, 1), INT2(Scalar.INT, 1, 2), INT3(Scalar.INT, 1, 3), INT4(Scalar.INT, 1, 4),
+        UINT(Scalar.UINT, 1, 1), UINT2(Scalar.UINT, 1, 2), UINT3(Scalar.UINT, 1, 3), UINT4(Scalar.UINT, 1, 4),
+        BOOL(Scalar.BOOL, 1, 1),
+        FLOAT2X2(Scalar.FLOAT, 2, 2), FLOAT3X3(Scalar.FLOAT, 3, 3), FLOAT4X4(Scalar.FLOAT, 4, 4),
+        FLOAT3X4(Scalar.FLOAT, 3, 4), FLOAT4X3(Scalar.FLOAT, 4, 3);
+
+        public final Scalar scalar;
+        public final int rows;
+        public final int columns;
+
+        Type(Scalar scalar, int rows, int columns) {
+            this.scalar = scalar;
+            this.rows = rows;
+            this.columns = columns;
+        }
+
+        public boolean isMatrix() {
+            return rows > 1;
+        }
+
+        /**
+         * @return The amount of 4 byte components of one value
+         */
+        public int components() {
+            return rows * columns;
+        }
+    }
+
+    /**
+     * A field of a layout. Values are stored as a number of rows, each holding a number of 4 byte components:
+     * scalars and vectors are a single row, matrices have one row per row (row_major) or per column (column_major,
+     * the HLSL default), and arrays repeat that for every array element. Inside a constant buffer every row after
+     * the first starts on a new register; in a vertex format the rows follow each other directly.
+     */
+    public static final class Field {
+        public final String name;
+        public final Type type;
+        /**
+         * The declared array length, or 0 if the field is not an array.
+         */
+        public final int arrayLength;
+        public final boolean rowMajor;
+        /**
+         * The byte offset of the field inside an element.
+         */
+        public final int offset;
+        /**
+         * The amount of components in each row.
+         */
+        public final int rowComponents;
+        /**
+         * The total amount of rows, over all array elements.
+         */
+        public final int rows;
+        /**
+         * The distance between two rows in bytes.
+         */
+        public final int rowStride;
+        /**
+         * The amount of bytes between the start of the field and the end of its last component.
+         */
+        public final int size;
+
+        private Field(String name, Type type, int arrayLength, boolean rowMajor, int offset, Packing packing) {
+            this.name = name;
+            this.type = type;
+            this.arrayLength = arrayLength;
+            this.rowMajor = rowMajor;
+            this.offset = offset;
+            var matrixRows = !type.isMatrix() ? 1 : rowMajor ? type.rows : type.columns;
+            this.rowComponents = type.components() / matrixRows;
+            this.rows = matrixRows * Math.max(arrayLength, 1);
+            this.rowStride = packing == Packing.CBUFFER ? REGISTER_SIZE : rowComponents * 4;
+            this.size = (rows - 1) * rowStride + rowComponents * 4;
+        }
+
+        /**
+         * @return The total amount of components, which is how many values a bulk write of this field consumes
+         */
+        public int components() {
+            return rows * rowComponents;
+        }
+
+        /**
+         * @return True if the components are stored without padding between them, so they can be copied in one go
+         */
+        public boolean isContiguous() {
+            return rows == 1 || rowStride == rowComponents * 4;
+        }
+
+        @Override
+        public String toString() {
+            var builder = new StringBuilder();
+            if (type.isMatrix()) builder.append(rowMajor ? "row_major " : "column_major ");
+            builder.append(type.name().toLowerCase(Locale.ROOT)).append(' ').append(name);
+            if (arrayLength > 0) builder.append('[').append(arrayLength).append(']');
+            return builder.append(" @ ").append(offset).toString();
+        }
+    }
+
+    /**
+     * Declares the fields of a layout in order. Matrices are column_major unless {@link #rowMajor()} is called,
+     * matching the HLSL default and {@code #pragma pack_matrix}.
+     */
+    public static final class Builder {
+        private final Packing packing;
+        private final List<Field> fields = new ArrayList<>();
+        private final Map<String, Field> byName = new HashMap<>();
+        private boolean rowMajor;
+        private int offset;
+
+        private Builder(Packing packing) {
+            this.packing = packing;
+        }
+
+        /**
+         * Makes the matrices declared after this call row_major.
+         * @return This builder
+         */
+        public Builder rowMajor() {
+            rowMajor = true;
+            return this;
+        }
+
+        /**
+         * Makes the matrices declared after this call column_major.
+         * @return This builder
+         */
+        public Builder columnMajor() {
+            rowMajor = false;
+            return this;
+        }
+
+        /**
+         * @param name The name of the field
+         * @param type The type of the field
+         * @return This builder
+         */
+        public Builder add(String name, Type type) {
+            return add(name, type, 0);
+        }
+
+        /**
+         * @param name The name of the field
+         * @param type The type of the array elements
+         * @param arrayLength The amount of array elements, or 0 for a field that is not an array
+         * @return This builder
+         */
+        public Builder add(String name, Type type, int arrayLength) {
+            if (arrayLength < 0) throw new IllegalArgumentException("Negative array length " + arrayLength + " for " + name);
+            if (byName.containsKey(name)) throw new IllegalArgumentException("Duplicate field " + name);
+            var start = offset;
+            if (packing == Packing.CBUFFER) {
+                var probe = new Field(name, type, arrayLength, rowMajor, 0, packing);
+                //Arrays and multi row fields always start a new register, single values only if they would straddle one
+                if (arrayLength > 0 || probe.rows > 1 || (start % REGISTER_SIZE) + probe.size > REGISTER_SIZE) {
+                    start = align(start);
+                }
+            }
+            var field = new Field(name, type, arrayLength, rowMajor, start, packing);
+            fields.add(field);
+            byName.put(name, field);
+            offset = start + field.size;
+            return this;
+        }
+
+        /**
+         * Skips bytes, for matching an existing layout with unused or unsupported members.
+         * @param bytes The amount of bytes to skip
+         * @return This builder
+         */
+        public Builder pad(int bytes) {
+            if (bytes < 0) throw new IllegalArgumentException("Negative padding " + bytes);
+            offset += bytes;
+            return this;
+        }
+
+        /**
+         * @return The layout with the declared fields
+         */
+        public HlslLayout build() {
+            return new HlslLayout(packing, new ArrayList<>(fields), packing == Packing.CBUFFER ? align(offset) : offset);
+        }
+
+        private static int align(int offset) {
+            return (offset + REGISTER_SIZE - 1) & -REGISTER_SIZE;
+        }
+    }
+}
@@ -0,0 +1,308 @@
+/*
+ * Copyright (c) 2021 FalsePattern
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.falsepattern.jwin32.memory;
+
+import jdk.incubator.foreign.MemorySegment;
+
+import java.util.Locale;
+
+/**
+ * Writes elements of an {@link HlslLayout} into a segment, for example the constants of a frame into a
+ * {@link MemoryStack} frame before uploading them, or a vertex stream into an arena. All offsets come from the
+ * layout, so a write is a bounds check plus the stores themselves, and larger fields are copied in bulk.
+ * <p>
+ * Bulk writes take their values tightly packed: the components of every row (see {@link HlslLayout.Field}) follow
+ * each other, without the padding the layout may add between rows. Matrices are read row by row for row_major fields
+ * and column by column for column_major fields, so a column_major field takes a column-major source array as is.
+ * <p>
+ * Not thread safe, but writers over the same segment may write distinct elements concurrently.
+ */
+public final class HlslWriter {
+    //Below this many components, single stores beat the slicing overhead of a bulk copy
+    private static final int BULK_THRESHOLD = 16;
+
+    private final HlslLayout layout;
+    private final MemorySegment segment;
+    private final long address;
+    private final int stride;
+    private final int count;
+
+    /**
+     * @param layout The layout of the elements
+     * @param segment The segment to write into, holding as many whole elements as fit into it
+     */
+    public HlslWriter(HlslLayout layout, MemorySegment segment) {
+        this.layout = layout;
+        this.segment = segment;
+        this.address = segment.address().toRawLongValue();
+        this.stride = layout.size();
+        var elements = stride == 0 ? 0 : segment.byteSize() / stride;
+        if (elements < 1) throw new IllegalArgumentException("Segment of " + segment.byteSize() + " bytes is too small for " + layout);
+        this.count = (int) Math.min(elements, Integer.MAX_VALUE);
+    }
+
+    /**
+     * Allocates zeroed, register aligned memory for the given amount of elements, and returns a writer over it.
+     * @param layout The layout of the elements
+     * @param allocator The allocator to take the memory from
+     * @param count The amount of elements
+     * @return A writer over the new memory
+     */
+    public static HlslWriter allocate(HlslLayout layout, MemoryAllocator allocator, int count) {
+        if (count < 1) throw new IllegalArgumentException("Element count must be positive, got " + count);
+        return new HlslWriter(layout, allocator.callocAligned((long) layout.size() * count, HlslLayout.REGISTER_SIZE));
+    }
+
+    public HlslLayout layout() {
+        return layout;
+    }
+
+    /**
+     * @return The segment the writer writes into
+     */
+    public MemorySegment segment() {
+        return segment;
+    }
+
+    /**
+     * @return The amount of elements the segment holds
+     */
+    public int count() {
+        return count;
+    }
+
+    /**
+     * @param element The index of the element
+     * @return The byte offset of the element inside the segment
+     */
+    public long offsetOf(int element) {
+        return (long) element * stride;
+    }
+
+    public void setFloat(HlslLayout.Field field, int element, float x) {
+        var at = address(field, element, HlslLayout.Scalar.FLOAT, 1);
+        MemoryUtil.SetFloat(at, x);
+    }
+
+    public void setFloat2(HlslLayout.Field field, int element, float x, float y) {
+        var at = address(field, element, HlslLayout.Scalar.FLOAT, 2);
+        MemoryUtil.SetFloat(at, x);
+        MemoryUtil.SetFloat(at + 4, y);
+    }
+
+    public void setFloat3(HlslLayout.Field field, int element, float x, float y, float z) {
+        var at = address(field, element, HlslLayout.Scalar.FLOAT, 3);
+        MemoryUtil.SetFloat(at, x);
+        MemoryUtil.SetFloat(at + 4, y);
+        MemoryUtil.SetFloat(at + 8, z);
+    }
+
+    public void setFloat4(HlslLayout.Field field, int element, float x, float y, float z, float w) {
+        var at = address(field, element, HlslLayout.Scalar.FLOAT, 4);
+        MemoryUtil.SetFloat(at, x);
+        MemoryUtil.SetFloat(at + 4, y);
+        MemoryUtil.SetFloat(at + 8, z);
+        MemoryUtil.SetFloat(at + 12, w);
+    }
+
+    /**
+     * Writes an int or uint field.
+     */
+    public void setInt(HlslLayout.Field field, int element, int x) {
+        var at = address(field, element, null, 1);
+        MemoryUtil.SetInt(at, x);
+    }
+
+    public void setInt2(HlslLayout.Field field, int element, int x, int y) {
+        var at = address(field, element, null, 2);
+        MemoryUtil.SetInt(at, x);
+        MemoryUtil.SetInt(at + 4, y);
+    }
+
+    public void setInt3(HlslLayout.Field field, int element, int x, int y, int z) {
+        var at = address(field, element, null, 3);
+        MemoryUtil.SetInt(at, x);
+        MemoryUtil.SetInt(at + 4, y);
+        MemoryUtil.SetInt(at + 8, z);
+    }
+
+    public void setInt4(HlslLayout.Field field, int element, int x, int y, int z, int w) {
+        var at = address(field, element, null, 4);
+        MemoryUtil.SetInt(at, x);
+        MemoryUtil.SetInt(at + 4, y);
+        MemoryUtil.SetInt(at + 8, z);
+        MemoryUtil.SetInt(at + 12, w);
+    }
+
+    public void setBool(HlslLayout.Field field, int element, boolean value) {
+        var at = address(field, element, HlslLayout.Scalar.BOOL, 1);
+        MemoryUtil.SetInt(at, value ? 1 : 0);
+    }
+
+    /**
+     * Writes every component of a float field of one element.
+     * @param field The field to write
+     * @param element The index of the element
+     * @param src The tightly packed values, {@link HlslLayout.Field#components()} of them
+     * @param srcIndex The index of the first value
+     */
+    public void put(HlslLayout.Field field, int element, float[] src, int srcIndex) {
+        put(field, element, 0, src, srcIndex, field.rows);
+    }
+
+    /**
+     * Writes a range of rows of a float field of one element, for example a few entries of an array.
+     * @param field The field to write
+     * @param element The index of the element
+     * @param firstRow The first row to write
+     * @param src The tightly packed values, {@link HlslLayout.Field#rowComponents} for every row
+     * @param srcIndex The index of the first value
+     * @param rows The amount of rows to write
+     */
+    public void put(HlslLayout.Field field, int element, int firstRow, float[] src, int srcIndex, int rows) {
+        checkRows(field, firstRow, rows);
+        var offset = offset(field, element, HlslLayout.Scalar.FLOAT, 1) + (long) firstRow * field.rowStride;
+        var components = field.rowComponents;
+        if (rows * components >= BULK_THRESHOLD && (rows == 1 || field.isContiguous())) {
+            MemoryUtil.Copy(src, srcIndex, segment, offset, rows * components);
+            return;
+        }
+        for (int row = 0; row < rows; row++, offset += field.rowStride) {
+            var at = address + offset;
+            for (int i = 0; i < components; i++, at += 4) {
+                MemoryUtil.SetFloat(at, src[srcIndex++]);
+            }
+        }
+    }
+
+    /**
+     * Writes every component of an int, uint or bool field of one element.
+     * @param field The field to write
+     * @param element The index of the element
+     * @param src The tightly packed values, {@link HlslLayout.Field#components()} of them
+     * @param srcIndex The index of the first value
+     */
+    public void put(HlslLayout.Field field, int element, int[] src, int srcIndex) {
+        put(field, element, 0, src, srcIndex, field.rows);
+    }
+
+    /**
+     * Writes a range of rows of an int, uint or bool field of one element.
+     * @param field The field to write
+     * @param element The index of the element
+     * @param firstRow The first row to write
+     * @param src The tightly packed values, {@link HlslLayout.Field#rowComponents} for every row
+     * @param srcIndex The index of the first value
+     * @param rows The amount of rows to write
+     */
+    public void put(HlslLayout.Field field, int element, int firstRow, int[] src, int srcIndex, int rows) {
+        checkRows(field, firstRow, rows);
+        var offset = offset(field, element, null, 1) + (long) firstRow * field.rowStride;
+        var components = field.rowComponents;
+        if (rows * components >= BULK_THRESHOLD && (rows == 1 || field.isContiguous())) {
+            MemoryUtil.Copy(src, srcIndex, segment, offset, rows * components);
+            return;
+        }
+        for (int row = 0; row < rows; row++, offset += field.rowStride) {
+            var at = address + offset;
+            for (int i = 0; i < components; i++, at += 4) {
+                MemoryUtil.SetInt(at, src[srcIndex++]);
+            }
+        }
+    }
+
+    /**
+     * Writes a float field of a range of elements, for example the positions of a vertex stream. Single component
+     * fields are scattered with a strided copy.
+     * @param field The field to write
+     * @param firstElement The index of the first element
+     * @param src The tightly packed values, {@link HlslLayout.Field#components()} for every element
+     * @param srcIndex The index of the first value
+     * @param elements The amount of elements to write
+     */
+    public void scatter(HlslLayout.Field field, int firstElement, float[] src, int srcIndex, int elements) {
+        checkRange(firstElement, elements);
+        if (elements == 0) return;
+        var components = field.components();
+        if (components == 1) {
+            offset(field, firstElement, HlslLayout.Scalar.FLOAT, 1);
+            MemoryUtil.Scatter(src, srcIndex, segment, offsetOf(firstElement) + field.offset, stride, elements);
+            return;
+        }
+        for (int i = 0; i < elements; i++, srcIndex += components) {
+            put(field, firstElement + i, 0, src, srcIndex, field.rows);
+        }
+    }
+
+    /**
+     * Writes an int, uint or bool field of a range of elements.
+     * @param field The field to write
+     * @param firstElement The index of the first element
+     * @param src The tightly packed values, {@link HlslLayout.Field#components()} for every element
+     * @param srcIndex The index of the first value
+     * @param elements The amount of elements to write
+     */
+    public void scatter(HlslLayout.Field field, int firstElement, int[] src, int srcIndex, int elements) {
+        checkRange(firstElement, elements);
+        if (elements == 0) return;
+        var components = field.components();
+        if (components == 1) {
+            offset(field, firstElement, null, 1);
+            MemoryUtil.Scatter(src, srcIndex, segment, offsetOf(firstElement) + field.offset, stride, elements);
+            return;
+        }
+        for (int i = 0; i < elements; i++, srcIndex += components) {
+            put(field, firstElement + i, 0, src, srcIndex, field.rows);
+        }
+    }
+
+    private long address(HlslLayout.Field field, int element, HlslLayout.Scalar scalar, int components) {
+        return address + offset(field, element, scalar, components);
+    }
+
+    /**
+     * Validates a write of the first row of a field, and returns the offset of the field inside the segment.
+     * @param scalar The expected component type, or null for any 4 byte integer type
+     */
+    private long offset(HlslLayout.Field field, int element, HlslLayout.Scalar scalar, int components) {
+        if (element < 0 || element >= count) throw new IndexOutOfBoundsException("Element " + element + " out of bounds for " + count + " elements");
+        if (!layout.contains(field)) throw new IllegalArgumentException("Field " + field + " does not belong to " + layout);
+        var type = field.type.scalar;
+        if (scalar == null ? type == HlslLayout.Scalar.FLOAT : type != scalar) {
+            throw new IllegalArgumentException("Field " + field + " does not hold " + (scalar == null ? "integer" : scalar.name().toLowerCase(Locale.ROOT)) + " components");
+        }
+        if (components > field.rowComponents) throw new IllegalArgumentException("Field " + field + " has fewer than " + components + " components");
+        return (long) element * stride + field.offset;
+    }
+
+    private void checkRange(int firstElement, int elements) {
+        if (firstElement < 0 || elements < 0 || firstElement > count - elements) {
+            throw new IndexOutOfBoundsException("Elements " + firstElement + " to " + (firstElement + elements) + " out of bounds for " + count + " elements");
+        }
+    }
+
+    private static void checkRows(HlslLayout.Field field, int firstRow, int rows) {
+        if (firstRow < 0 || rows < 0 || firstRow > field.rows - rows) {
+            throw new IndexOutOfBoundsException("Rows " + firstRow + " to " + (firstRow + rows) + " out of bounds for " + field);
+        }
+    }
+}
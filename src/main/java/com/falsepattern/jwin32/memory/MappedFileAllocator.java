@@ -0,0 +1,237 @@
+/*
+ * Copyright (c) 2021 FalsePattern
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.falsepattern.jwin32.memory;
+
+import jdk.incubator.foreign.MemoryAddress;
+import jdk.incubator.foreign.MemorySegment;
+import jdk.incubator.foreign.ResourceScope;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+
+/**
+ * An allocator backed by a memory mapped file, so file contents can be handed to native code without being copied
+ * through the heap. Existing data can be accessed with {@link #view(long, long)} and {@link #slice(long, long)}, while
+ * new data is bump allocated after the current {@link #position()}, the same way as in a {@link MemoryArena}.
+ * Changes to read-write mappings are written back by the OS eventually, or right away with {@link #force()}.
+ * <p>
+ * {@link #shared(String, long)} maps a named file in the shared memory directory, which lets other processes map the
+ * same buffer.
+ * <p>
+ * The allocator is not thread safe, but the mapped segments can be accessed from any thread. Closing the allocator
+ * unmaps the file, which invalidates every segment it handed out.
+ */
+public final class MappedFileAllocator implements MemoryAllocator, AutoCloseable {
+    private static final Path SHARED_MEMORY_DIRECTORY = Files.isDirectory(Paths.get("/dev/shm")) ? Paths.get("/dev/shm") : Paths.get(System.getProperty("java.io.tmpdir")).normalize();
+
+    private final ResourceScope scope = ResourceScope.newSharedScope();
+    private final Path path;
+    private final MemorySegment segment;
+    private final long baseAddress;
+    private final boolean readOnly;
+    private long position;
+
+    private MappedFileAllocator(Path path, long size, FileChannel.MapMode mode) throws IOException {
+        this.path = path;
+        this.readOnly = mode == FileChannel.MapMode.READ_ONLY;
+        this.segment = MemorySegment.mapFile(path, 0, size, mode, scope);
+        this.baseAddress = segment.address().toRawLongValue();
+    }
+
+    /**
+     * Maps a file for reading and writing, creating or extending it if needed.
+     * @param path The file to map
+     * @param size The size of the mapping, in bytes
+     * @return A new allocator, with its position at the start of the file
+     */
+    public static MappedFileAllocator map(Path path, long size) throws IOException {
+        try {
+            Files.createFile(path);
+        } catch (FileAlreadyExistsException ignored) {
+        }
+        return new MappedFileAllocator(path, size, FileChannel.MapMode.READ_WRITE);
+    }
+
+    /**
+     * Maps an entire file for reading. Allocating from the returned allocator is not possible.
+     * @param path The file to map
+     * @return A new read only allocator
+     */
+    public static MappedFileAllocator mapReadOnly(Path path) throws IOException {
+        return new MappedFileAllocator(path, Files.size(path), FileChannel.MapMode.READ_ONLY);
+    }
+
+    /**
+     * Maps a named shared memory buffer for reading and writing, creating it if needed. Every process mapping the same
+     * name shares the contents of the buffer. The buffer outlives the mapping, and can be removed with
+     * {@link Files#deleteIfExists(Path)} on {@link #path()} once no process needs it anymore.
+     * @param name The name of the buffer, which must be a valid file name without path separators or colons
+     * @param size The size of the buffer, in bytes
+     * @return A new allocator, with its position at the start of the buffer
+     * @throws IllegalArgumentException If the name is empty, or could refer to a file outside the shared memory
+     *                                  directory
+     */
+    public static MappedFileAllocator shared(String name, long size) throws IOException {
+        if (name.isEmpty() || name.indexOf('/') >= 0 || name.indexOf('\\') >= 0 || name.indexOf(':') >= 0 || name.indexOf('\0') >= 0) {
+            throw new IllegalArgumentException("Invalid shared memory buffer name \"" + name + "\"");
+        }
+        var path = SHARED_MEMORY_DIRECTORY.resolve("jwin32-" + name).normalize();
+        if (!SHARED_MEMORY_DIRECTORY.equals(path.getParent())) {
+            throw new IllegalArgumentException("Invalid shared memory buffer name \"" + name + "\"");
+        }
+        return map(path, size);
+    }
+
+    /**
+     * @return The mapped file
+     */
+    public Path path() {
+        return path;
+    }
+
+    /**
+     * @return True if the file was mapped read only
+     */
+    public boolean isReadOnly() {
+        return readOnly;
+    }
+
+    /**
+     * @return The entire mapping. Read only if the file was mapped read only.
+     */
+    public MemorySegment segment() {
+        return segment;
+    }
+
+    /**
+     * @param offset The offset of the region in the file
+     * @param size The size of the region, in bytes
+     * @return A read only segment of the region
+     */
+    public MemorySegment view(long offset, long size) {
+        return segment.asSlice(offset, size).asReadOnly();
+    }
+
+    /**
+     * @param offset The offset of the region in the file
+     * @param size The size of the region, in bytes
+     * @return A segment of the region, which is only writable if the file was mapped for writing
+     */
+    public MemorySegment slice(long offset, long size) {
+        return segment.asSlice(offset, size);
+    }
+
+    /**
+     * @return The offset in the file the next allocation starts at (before alignment)
+     */
+    public long position() {
+        return position;
+    }
+
+    /**
+     * Moves the allocation position, for example past the data already in the file, or back to reuse a region.
+     * @param position The new offset in the file
+     */
+    public void position(long position) {
+        if (position < 0 || position > segment.byteSize()) throw new IllegalArgumentException("Invalid mapped file position " + position);
+        this.position = position;
+    }
+
+    /**
+     * @param address The address of a segment handed out by this allocator
+     * @return The offset of the address in the file, which other processes can use to find the same data
+     */
+    public long offsetOf(long address) {
+        var offset = address - baseAddress;
+        if (offset < 0 || offset > segment.byteSize()) throw new IllegalArgumentException("Address 0x" + Long.toHexString(address) + " is not inside the mapped file " + path);
+        return offset;
+    }
+
+    /**
+     * Bumps the allocation position past a new allocation.
+     * @return The offset of the allocation in the file
+     */
+    private long bump(long size, long alignment) {
+        if (readOnly) throw new IllegalStateException("Tried to allocate from read only mapped file " + path);
+        if (alignment <= 0) throw new IllegalArgumentException("Tried to allocate with non-positive alignment " + alignment);
+        var misalignment = (baseAddress + position) % alignment;
+        var start = misalignment == 0 ? position : position + alignment - misalignment;
+        if (start + size > segment.byteSize()) {
+            throw new IllegalStateException("Mapped file " + path + " is full! Tried to allocate " + size + " bytes at offset " + start + " out of " + segment.byteSize());
+        }
+        position = start + size;
+        MemoryEvents.allocation(MemoryEvents.MAPPED_FILE, baseAddress + start, size, alignment);
+        return start;
+    }
+
+    @Override
+    public MemorySegment mallocAligned(long size, long alignment) {
+        var start = bump(size, alignment);
+        if (MemoryChecks.UNCHECKED) {
+            return MemoryAddress.ofLong(baseAddress + start).asSegment(size, ResourceScope.globalScope());
+        }
+        return segment.asSlice(start, size);
+    }
+
+    @Override
+    public MemorySegment malloc(long size) {
+        return mallocAligned(size, 1);
+    }
+
+    @Override
+    public long nmallocAligned(long size, long alignment) {
+        return baseAddress + bump(size, alignment);
+    }
+
+    @Override
+    public long nmalloc(long size) {
+        return nmallocAligned(size, 1);
+    }
+
+    /**
+     * Writes every change to the mapping back to the file.
+     */
+    public void force() {
+        if (!readOnly) segment.force();
+    }
+
+    /**
+     * Writes the changes to a region of the mapping back to the file.
+     * @param offset The offset of the region in the file
+     * @param size The size of the region, in bytes
+     */
+    public void force(long offset, long size) {
+        if (!readOnly) segment.asSlice(offset, size).force();
+    }
+
+    /**
+     * Unmaps the file. Changes are not forced to disk, but stay in the OS file cache.
+     */
+    @Override
+    public void close() {
+        scope.close();
+    }
+}
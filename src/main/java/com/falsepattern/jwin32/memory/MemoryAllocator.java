@@ -45,6 +45,24 @@ public interface MemoryAllocator extends SegmentAllocator {
      */
     MemorySegment malloc(long size);
 
+    /**
+     * Releases a block previously allocated by this allocator. Allocators that release their memory in bulk, like
+     * {@link MemoryStack}, ignore this.
+     * @param segment The segment to release
+     */
+    default void free(MemorySegment segment) {
+        nfree(segment.address().toRawLongValue(), segment.byteSize());
+    }
+
+    /**
+     * Same as {@link #free(MemorySegment)}, but for blocks allocated with {@link #nmallocAligned(long, long)} and
+     * friends.
+     * @param address The address of the block to release
+     * @param size The size the block was allocated with
+     */
+    default void nfree(long address, long size) {
+    }
+
     /**
      * Fills an entire memory segment with zeroes.
      * @param segment The segment to fill with zeroes
@@ -75,11 +93,13 @@ public interface MemoryAllocator extends SegmentAllocator {
      * @return An unaligned memory segment with the specific size, initialized to zero
      */
     default MemorySegment calloc(long size) {
-        return zero(malloc(size));
+        return callocAligned(size, 1);
     }
 
     /**
      * Same as {@link #mallocAligned(long, long)}, but initializes every byte of the allocated segment to zero.
+     * Every other <code>calloc</code> method goes through this one, so allocators that can prove (parts of) a new
+     * block to already be zero override it to skip (or shrink) the fill.
      * @param size The total amount of bytes to allocate
      * @param alignment The byte alignment of the start of the segment
      * @return A memory segment allocated with the specific alignment and size, initialized to zero
@@ -88,6 +108,28 @@ public interface MemoryAllocator extends SegmentAllocator {
         return zero(mallocAligned(size, alignment));
     }
 
+    /**
+     * Allocates a block of memory whose contents are unspecified. Use this when the block is going to be overwritten
+     * right away anyway: allocators that hand out zeroed memory from their regular <code>malloc</code> methods (such
+     * as {@link MemoryUtil}) skip the zeroing here.
+     * @param size The total amount of bytes to allocate
+     * @param alignment The byte alignment of the start of the segment
+     * @return A memory segment allocated with the specific alignment and size, with unspecified contents
+     */
+    default MemorySegment mallocUninitialized(long size, long alignment) {
+        return mallocAligned(size, alignment);
+    }
+
+    /**
+     * Same as {@link #mallocUninitialized(long, long)}, but returns the raw address of the block.
+     * @param size The total amount of bytes to allocate
+     * @param alignment The byte alignment of the start of the block
+     * @return The address of the allocated block, with unspecified contents
+     */
+    default long nmallocUninitialized(long size, long alignment) {
+        return nmallocAligned(size, alignment);
+    }
+
     /**
      * Same as {@link #mallocAligned(long, long)}, but initializes every byte of the allocated segment to zero.
      * @param layout The memory layout to allocate based on
@@ -110,7 +152,7 @@ public interface MemoryAllocator extends SegmentAllocator {
      * @return A memory segment with size 1 and alignment 1, initialized to zero
      */
     default MemorySegment callocByte() {
-        return zero(mallocByte());
+        return callocAligned(1, 1);
     }
 
     /**
@@ -126,7 +168,7 @@ public interface MemoryAllocator extends SegmentAllocator {
      * @return A memory segment with size 2 and alignment 2, initialized to zero
      */
     default MemorySegment callocShort() {
-        return zero(mallocShort());
+        return callocAligned(CLinker.C_SHORT.byteSize(), CLinker.C_SHORT.byteAlignment());
     }
 
     /**
@@ -142,7 +184,7 @@ public interface MemoryAllocator extends SegmentAllocator {
      * @return A memory segment with size 4 and alignment 4, initialized to zero
      */
     default MemorySegment callocInt() {
-        return zero(mallocInt());
+        return callocAligned(CLinker.C_INT.byteSize(), CLinker.C_INT.byteAlignment());
     }
 
     /**
@@ -158,7 +200,7 @@ public interface MemoryAllocator extends SegmentAllocator {
      * @return A memory segment with size 4/8 and alignment 4/8, initialized to zero, depending on the operating system
      */
     default MemorySegment callocLong() {
-        return zero(mallocLong());
+        return callocAligned(CLinker.C_LONG.byteSize(), CLinker.C_LONG.byteAlignment());
     }
 
     /**
@@ -174,7 +216,7 @@ public interface MemoryAllocator extends SegmentAllocator {
      * @return A memory segment with size 8 and alignment 8, initialized to zero
      */
     default MemorySegment callocLongLong() {
-        return zero(mallocLongLong());
+        return callocAligned(CLinker.C_LONG_LONG.byteSize(), CLinker.C_LONG_LONG.byteAlignment());
     }
 
     /**
@@ -190,7 +232,7 @@ public interface MemoryAllocator extends SegmentAllocator {
      * @return A memory segment with size 8 and alignment 8, initialized to zero
      */
     default MemorySegment callocPointer() {
-        return zero(mallocPointer());
+        return callocAligned(CLinker.C_POINTER.byteSize(), CLinker.C_POINTER.byteAlignment());
     }
 
     /**
@@ -213,6 +255,49 @@ public interface MemoryAllocator extends SegmentAllocator {
         return referenceP(pValue.address());
     }
 
+    /**
+     * Allocates a block of memory aligned to a specific byte offset, and returns its raw address instead of a segment.
+     * Allocators that can hand out memory without creating a segment object (such as {@link MemoryStack}) override
+     * this, so hot loops can allocate native scratch memory without any heap allocation. Use the address based
+     * accessors in {@link MemoryUtil} to read/write the memory.
+     * @param size The total amount of bytes to allocate
+     * @param alignment The byte alignment of the start of the block
+     * @return The address of the allocated block
+     */
+    default long nmallocAligned(long size, long alignment) {
+        return mallocAligned(size, alignment).address().toRawLongValue();
+    }
+
+    /**
+     * Same as {@link #nmallocAligned(long, long)}, but without any alignment.
+     * @param size The total amount of bytes to allocate
+     * @return The address of the allocated block
+     */
+    default long nmalloc(long size) {
+        return nmallocAligned(size, 1);
+    }
+
+    /**
+     * Same as {@link #nmallocAligned(long, long)}, but initializes every byte of the allocated block to zero.
+     * @param size The total amount of bytes to allocate
+     * @param alignment The byte alignment of the start of the block
+     * @return The address of the allocated block, initialized to zero
+     */
+    default long ncallocAligned(long size, long alignment) {
+        var address = nmallocAligned(size, alignment);
+        MemoryUtil.Fill(address, size, (byte) 0);
+        return address;
+    }
+
+    /**
+     * Same as {@link #nmalloc(long)}, but initializes every byte of the allocated block to zero.
+     * @param size The total amount of bytes to allocate
+     * @return The address of the allocated block, initialized to zero
+     */
+    default long ncalloc(long size) {
+        return ncallocAligned(size, 1);
+    }
+
     /**
      * Converts a java string to a native string using the platform charset.
      * @param str The string to convert to native
@@ -221,4 +306,57 @@ public interface MemoryAllocator extends SegmentAllocator {
     default MemorySegment toCString(String str) {
         return CLinker.toCString(str, this);
     }
+
+    /**
+     * Converts a java string to a null terminated UTF-16LE (wide) native string, as expected by the <code>W</code>
+     * variants of the win32 functions. The characters are written straight into the allocated segment, without any
+     * temporary heap array.
+     * @param str The string to convert to native
+     * @return The native copy of the string
+     */
+    default MemorySegment toWString(String str) {
+        var length = str.length();
+        var segment = mallocAligned((length + 1L) * 2, 2);
+        MemoryUtil.WriteWString(str, segment, 0);
+        return segment;
+    }
+
+    /**
+     * Same as {@link #toWString(String)}, but returns the raw address of the native string.
+     * @param str The string to convert to native
+     * @return The address of the native copy of the string
+     */
+    default long ntoWString(String str) {
+        var length = str.length();
+        var address = nmallocAligned((length + 1L) * 2, 2);
+        for (int i = 0; i < length; i++) {
+            MemoryUtil.SetChar(address + i * 2L, str.charAt(i));
+        }
+        MemoryUtil.SetChar(address + length * 2L, (char) 0);
+        return address;
+    }
+
+    /**
+     * Converts a list of java strings into a native array of wide string pointers (<code>LPCWSTR*</code>), with a
+     * trailing null pointer. The pointer array and every string are placed in a single contiguous allocation.
+     * @param strings The strings to convert to native
+     * @return A segment starting with the pointer array, followed by the strings themselves
+     */
+    default MemorySegment toWStringArray(String... strings) {
+        var pointerSize = CLinker.C_POINTER.byteSize();
+        var tableSize = (strings.length + 1L) * pointerSize;
+        var size = tableSize;
+        for (var str : strings) {
+            size += (str.length() + 1L) * 2;
+        }
+        var segment = mallocAligned(size, pointerSize);
+        var base = segment.address().toRawLongValue();
+        var offset = tableSize;
+        for (int i = 0; i < strings.length; i++) {
+            MemoryUtil.SetLong(segment, i * pointerSize, base + offset);
+            offset = MemoryUtil.WriteWString(strings[i], segment, offset);
+        }
+        MemoryUtil.SetLong(segment, strings.length * pointerSize, 0L);
+        return segment;
+    }
 }
@@ -0,0 +1,210 @@
+/*
+ * Copyright (c) 2021 FalsePattern
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.falsepattern.jwin32.memory;
+
+import jdk.incubator.foreign.MemoryAddress;
+import jdk.incubator.foreign.MemorySegment;
+import jdk.incubator.foreign.ResourceScope;
+
+import java.util.Arrays;
+
+/**
+ * A region allocator for data that shares a single lifetime, but doesn't follow the LIFO order of a
+ * {@link MemoryStack}, such as per-frame command data. Allocating is a pointer bump inside a reserved block, and
+ * {@link #reset()} reclaims every allocation at once while keeping the blocks for reuse. {@link #mark()} and
+ * {@link #rewind(long)} can be used to release everything allocated after a specific point.
+ * <p>
+ * Arenas are not thread safe, but they may be handed over between threads. The reserved blocks are released when the
+ * arena is {@link #close()}-d, which invalidates every segment it handed out.
+ */
+public class MemoryArena implements MemoryAllocator, AutoCloseable {
+    public static final long DEFAULT_BLOCK_SIZE = 1024 * 1024;
+    private static final long BLOCK_ALIGNMENT = 0x1000;
+    //Marks store the block index above the offset bits
+    private static final int MARK_BLOCK_SHIFT = 40;
+    private static final long MARK_OFFSET_MASK = (1L << MARK_BLOCK_SHIFT) - 1;
+
+    private final ResourceScope scope = ResourceScope.newSharedScope();
+    private final long blockSize;
+    private MemorySegment[] blocks = new MemorySegment[4];
+    private int blockCount;
+    private int block;
+    private MemorySegment currentBlock;
+    private long currentBlockAddress;
+    private long offset;
+    private long reserved;
+    //The budget accounts the blocks were charged to, in reservation order
+    private MemoryBudget.Account[] charges = new MemoryBudget.Account[4];
+    private long[] chargeSizes = new long[4];
+    private int chargeCount;
+
+    /**
+     * Creates an arena that reserves {@value #DEFAULT_BLOCK_SIZE} byte blocks.
+     */
+    public MemoryArena() {
+        this(DEFAULT_BLOCK_SIZE);
+    }
+
+    /**
+     * @param blockSize The size of the blocks the arena reserves. Larger allocations receive a dedicated block.
+     */
+    public MemoryArena(long blockSize) {
+        if (blockSize <= 0 || blockSize > MARK_OFFSET_MASK) throw new IllegalArgumentException("Invalid arena block size " + blockSize);
+        this.blockSize = blockSize;
+        blocks[0] = reserve(blockSize);
+        blockCount = 1;
+        select(0);
+    }
+
+    private MemorySegment reserve(long size) {
+        var account = MemoryBudget.charge(size);
+        if (account != null) {
+            if (chargeCount == charges.length) {
+                charges = Arrays.copyOf(charges, chargeCount * 2);
+                chargeSizes = Arrays.copyOf(chargeSizes, chargeCount * 2);
+            }
+            charges[chargeCount] = account;
+            chargeSizes[chargeCount++] = size;
+        }
+        reserved += size;
+        return MemorySegment.allocateNative(size, BLOCK_ALIGNMENT, scope);
+    }
+
+    private void select(int index) {
+        block = index;
+        currentBlock = blocks[index];
+        currentBlockAddress = currentBlock.address().toRawLongValue();
+        offset = 0;
+    }
+
+    private long alignedOffset(long alignment) {
+        var misalignment = (currentBlockAddress + offset) % alignment;
+        return misalignment == 0 ? offset : offset + alignment - misalignment;
+    }
+
+    /**
+     * Moves on to the next block that can fit the allocation, reserving a new one if none of the remaining blocks can.
+     */
+    private void advance(long size, long alignment) {
+        var needed = size + alignment - 1;
+        if (block + 1 < blockCount && blocks[block + 1].byteSize() >= needed) {
+            select(block + 1);
+            return;
+        }
+        if (blockCount == blocks.length) {
+            blocks = Arrays.copyOf(blocks, blocks.length * 2);
+        }
+        //Keep the remaining (too small) blocks after the new one, so they get reused after a reset
+        System.arraycopy(blocks, block + 1, blocks, block + 2, blockCount - block - 1);
+        blocks[block + 1] = reserve(Math.max(blockSize, needed));
+        blockCount++;
+        select(block + 1);
+    }
+
+    /**
+     * Bumps the arena pointer past a new allocation.
+     * @return The offset of the allocation inside the current block
+     */
+    private long bump(long size, long alignment) {
+        if (alignment <= 0) throw new IllegalArgumentException("Tried to allocate with non-positive alignment " + alignment);
+        var start = alignedOffset(alignment);
+        if (start + size > currentBlock.byteSize()) {
+            advance(size, alignment);
+            start = alignedOffset(alignment);
+        }
+        offset = start + size;
+        MemoryEvents.allocation(MemoryEvents.MEMORY_ARENA, currentBlockAddress + start, size, alignment);
+        return start;
+    }
+
+    @Override
+    public MemorySegment mallocAligned(long size, long alignment) {
+        var start = bump(size, alignment);
+        if (MemoryChecks.UNCHECKED) {
+            return MemoryAddress.ofLong(currentBlockAddress + start).asSegment(size, ResourceScope.globalScope());
+        }
+        return currentBlock.asSlice(start, size);
+    }
+
+    @Override
+    public MemorySegment malloc(long size) {
+        return mallocAligned(size, 1);
+    }
+
+    @Override
+    public long nmallocAligned(long size, long alignment) {
+        var start = bump(size, alignment);
+        return currentBlockAddress + start;
+    }
+
+    @Override
+    public long nmalloc(long size) {
+        return nmallocAligned(size, 1);
+    }
+
+    /**
+     * Captures the current allocation position of the arena.
+     * @return An opaque position that can be passed to {@link #rewind(long)}
+     */
+    public long mark() {
+        return ((long) block << MARK_BLOCK_SHIFT) | offset;
+    }
+
+    /**
+     * Releases every allocation made since the given {@link #mark()}. Marks taken after the given one become invalid.
+     * @param mark A position previously returned by {@link #mark()}
+     */
+    public void rewind(long mark) {
+        var index = (int) (mark >>> MARK_BLOCK_SHIFT);
+        var markOffset = mark & MARK_OFFSET_MASK;
+        if (index >= blockCount || markOffset > blocks[index].byteSize()) throw new IllegalArgumentException("Invalid arena mark " + mark);
+        select(index);
+        offset = markOffset;
+    }
+
+    /**
+     * Releases every allocation at once. The reserved blocks are kept, and reused by the following allocations.
+     */
+    public void reset() {
+        select(0);
+    }
+
+    /**
+     * @return The total amount of native memory reserved by this arena, in bytes
+     */
+    public long reservedBytes() {
+        return reserved;
+    }
+
+    /**
+     * Releases every reserved block. Segments allocated from this arena can no longer be accessed afterwards.
+     */
+    @Override
+    public void close() {
+        scope.close();
+        for (int i = 0; i < chargeCount; i++) {
+            charges[i].release(chargeSizes[i]);
+            charges[i] = null;
+        }
+        chargeCount = 0;
+    }
+}
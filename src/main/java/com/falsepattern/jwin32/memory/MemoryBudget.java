@@ -0,0 +1,348 @@
+/*
+ * Copyright (c) 2021 FalsePattern
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.falsepattern.jwin32.memory;
+
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A native memory budget, enforced by {@link MemoryUtil} and {@link MemoryArena}, and by any other allocator that
+ * charges its reservations with {@link #charge(long)}. There is a global limit, set with the {@value #PROPERTY_LIMIT}
+ * system property or {@link #setLimit(long)}, and optional limits per category, set with
+ * {@code jwin32.memory.budget.category.<name>} system properties or {@link #setLimit(String, long)}. Categories are
+ * the same tags the {@link MemoryProfiler} uses, see {@link MemoryProfiler#category(String)}. A limit of 0 means
+ * unlimited. Memory is only accounted once a limit was set.
+ * <p>
+ * When an allocation would exceed a limit, the {@link Policy} of the thread decides what happens. The default policy
+ * is set with the {@value #PROPERTY_POLICY} (and {@value #PROPERTY_TIMEOUT}, in milliseconds) system properties, and
+ * can be overridden per thread with {@link #policy(Policy, long, TimeUnit)}. Allocations that don't fit the budget
+ * fail with an {@link OutOfMemoryError}.
+ * <p>
+ * The usage of the budget can be inspected over JMX, see {@link MemoryBudgetMetrics}.
+ */
+public final class MemoryBudget {
+    public static final String PROPERTY_LIMIT = "jwin32.memory.budget";
+    public static final String PROPERTY_CATEGORY_LIMIT_PREFIX = "jwin32.memory.budget.category.";
+    public static final String PROPERTY_POLICY = "jwin32.memory.budget.policy";
+    public static final String PROPERTY_TIMEOUT = "jwin32.memory.budget.timeout";
+    public static final String GLOBAL = "global";
+
+    public enum Policy {
+        /**
+         * Fail right away.
+         */
+        FAIL,
+        /**
+         * Run the reclaim hooks, and fail if the allocation still doesn't fit.
+         */
+        RECLAIM,
+        /**
+         * Run the reclaim hooks, then wait for other threads to free memory, until the timeout.
+         */
+        BLOCK
+    }
+
+    private static final Policy DEFAULT_POLICY = Policy.valueOf(System.getProperty(PROPERTY_POLICY, "reclaim").toUpperCase(Locale.ROOT));
+    private static final long DEFAULT_TIMEOUT_NANOS = TimeUnit.MILLISECONDS.toNanos(Long.getLong(PROPERTY_TIMEOUT, 1000));
+
+    //Set once any limit is configured. Blocks allocated before that are never accounted.
+    static volatile boolean active;
+    private static final Account global = new Account(GLOBAL, null);
+    private static final ConcurrentHashMap<String, Account> categories = new ConcurrentHashMap<>();
+    private static final CopyOnWriteArrayList<ReclaimHook> reclaimHooks = new CopyOnWriteArrayList<>();
+    private static final ThreadLocal<PolicySettings> policies = new ThreadLocal<>();
+    //Blocked threads wait on this, and releases notify it while there are waiters
+    private static final Object released = new Object();
+    private static final AtomicInteger waiters = new AtomicInteger();
+    private static final AtomicLong rejections = new AtomicLong();
+    private static final AtomicLong stalls = new AtomicLong();
+    private static final AtomicLong stallNanos = new AtomicLong();
+
+    static {
+        var limit = Long.getLong(PROPERTY_LIMIT, 0);
+        if (limit > 0) setLimit(limit);
+        for (var name : System.getProperties().stringPropertyNames()) {
+            if (name.startsWith(PROPERTY_CATEGORY_LIMIT_PREFIX)) {
+                setLimit(name.substring(PROPERTY_CATEGORY_LIMIT_PREFIX.length()), Long.getLong(name, 0));
+            }
+        }
+    }
+
+    private MemoryBudget() {}
+
+    /**
+     * @param bytes The global limit, or 0 for unlimited
+     */
+    public static void setLimit(long bytes) {
+        global.limit = Math.max(bytes, 0);
+        active = true;
+    }
+
+    /**
+     * @param category The category to limit. Allocations in the category count towards both its own and the global
+     *                 limit.
+     * @param bytes The limit of the category, or 0 for unlimited
+     */
+    public static void setLimit(String category, long bytes) {
+        categories.computeIfAbsent(category, name -> new Account(name, global)).limit = Math.max(bytes, 0);
+        active = true;
+    }
+
+    /**
+     * Registers a hook that is run when an allocation exceeds the budget, with the {@link Policy#RECLAIM} or
+     * {@link Policy#BLOCK} policy. The hook should free memory, such as caches.
+     * @param hook The hook to register
+     */
+    public static void addReclaimHook(ReclaimHook hook) {
+        reclaimHooks.add(hook);
+    }
+
+    public static void removeReclaimHook(ReclaimHook hook) {
+        reclaimHooks.remove(hook);
+    }
+
+    /**
+     * Overrides the policy of the current thread, until the returned scope is closed.
+     * @param policy The policy to use
+     * @param timeout The maximum time to wait with {@link Policy#BLOCK}
+     * @param unit The unit of the timeout
+     * @return A scope that restores the previous policy when closed
+     */
+    public static PolicyScope policy(Policy policy, long timeout, TimeUnit unit) {
+        var previous = policies.get();
+        policies.set(new PolicySettings(policy, unit.toNanos(timeout)));
+        return new PolicyScope(previous);
+    }
+
+    /**
+     * Charges an allocation to the budget of the current thread's category, applying the thread's policy if it
+     * doesn't fit. Opt-in allocators call this before reserving memory, and {@link Account#release(long)} the
+     * returned account after freeing it.
+     * @param bytes The size of the allocation
+     * @return The account the allocation was charged to, or null if the budget is not active
+     * @throws OutOfMemoryError If the allocation doesn't fit the budget
+     */
+    public static Account charge(long bytes) {
+        if (!active) return null;
+        var category = MemoryProfiler.currentCategory();
+        var account = categories.getOrDefault(category, global);
+        if (account.tryCharge(bytes)) return account;
+        return chargeSlow(account, category, bytes);
+    }
+
+    private static Account chargeSlow(Account account, String category, long bytes) {
+        rejections.incrementAndGet();
+        var settings = policies.get();
+        var policy = settings == null ? DEFAULT_POLICY : settings.policy;
+        if (policy != Policy.FAIL) {
+            for (var hook : reclaimHooks) {
+                hook.reclaim(category, bytes);
+                if (account.tryCharge(bytes)) return account;
+            }
+        }
+        if (policy == Policy.BLOCK) {
+            var timeout = settings == null ? DEFAULT_TIMEOUT_NANOS : settings.timeoutNanos;
+            var start = System.nanoTime();
+            var deadline = start + timeout;
+            var charged = false;
+            waiters.incrementAndGet();
+            try {
+                synchronized (released) {
+                    while (!(charged = account.tryCharge(bytes))) {
+                        var remaining = deadline - System.nanoTime();
+                        if (remaining <= 0) break;
+                        TimeUnit.NANOSECONDS.timedWait(released, remaining);
+                    }
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } finally {
+                waiters.decrementAndGet();
+                stalls.incrementAndGet();
+                stallNanos.addAndGet(System.nanoTime() - start);
+            }
+            if (charged) return account;
+        }
+        throw new OutOfMemoryError("Native memory budget exceeded! Tried to allocate " + bytes + " bytes in category " + category + ", " + account.describe());
+    }
+
+    /**
+     * @return The global account
+     */
+    public static Account global() {
+        return global;
+    }
+
+    /**
+     * @return The accounts of every category with a limit, by name
+     */
+    public static Map<String, Account> categories() {
+        return new TreeMap<>(categories);
+    }
+
+    /**
+     * @return The amount of allocations that didn't fit the budget right away
+     */
+    public static long rejections() {
+        return rejections.get();
+    }
+
+    /**
+     * @return The amount of times an allocation blocked with {@link Policy#BLOCK}
+     */
+    public static long stalls() {
+        return stalls.get();
+    }
+
+    /**
+     * @return The total time allocations spent blocked, in nanoseconds
+     */
+    public static long stallNanos() {
+        return stallNanos.get();
+    }
+
+    /**
+     * The usage and limit of the global budget, or of a category.
+     */
+    public static final class Account {
+        private final String name;
+        private final Account parent;
+        private final AtomicLong used = new AtomicLong();
+        private volatile long limit;
+
+        private Account(String name, Account parent) {
+            this.name = name;
+            this.parent = parent;
+        }
+
+        private boolean tryChargeOwn(long bytes) {
+            while (true) {
+                var current = used.get();
+                var limit = this.limit;
+                if (limit > 0 && current + bytes > limit) return false;
+                if (used.compareAndSet(current, current + bytes)) return true;
+            }
+        }
+
+        boolean tryCharge(long bytes) {
+            if (!tryChargeOwn(bytes)) return false;
+            if (parent != null && !parent.tryChargeOwn(bytes)) {
+                used.addAndGet(-bytes);
+                return false;
+            }
+            return true;
+        }
+
+        /**
+         * Returns previously charged memory to the budget, waking up blocked allocations.
+         * @param bytes The size of the freed allocation
+         */
+        public void release(long bytes) {
+            used.addAndGet(-bytes);
+            if (parent != null) parent.used.addAndGet(-bytes);
+            if (waiters.get() > 0) {
+                synchronized (released) {
+                    released.notifyAll();
+                }
+            }
+        }
+
+        public String name() {
+            return name;
+        }
+
+        /**
+         * @return The amount of bytes currently charged to this account
+         */
+        public long usedBytes() {
+            return used.get();
+        }
+
+        /**
+         * @return The limit of this account, or 0 if unlimited
+         */
+        public long limit() {
+            return limit;
+        }
+
+        /**
+         * @return The used fraction of the limit, or 0 if unlimited
+         */
+        public double utilization() {
+            var limit = this.limit;
+            return limit > 0 ? (double) used.get() / limit : 0;
+        }
+
+        private String describe() {
+            var description = name + " uses " + used.get() + " out of " + limit + " bytes";
+            return parent == null ? description : description + ", " + parent.describe();
+        }
+    }
+
+    /**
+     * Frees memory when the budget is exceeded.
+     */
+    @FunctionalInterface
+    public interface ReclaimHook {
+        /**
+         * @param category The category of the allocation that didn't fit
+         * @param bytes The size of the allocation that didn't fit
+         */
+        void reclaim(String category, long bytes);
+    }
+
+    private static final class PolicySettings {
+        final Policy policy;
+        final long timeoutNanos;
+
+        PolicySettings(Policy policy, long timeoutNanos) {
+            this.policy = policy;
+            this.timeoutNanos = timeoutNanos;
+        }
+    }
+
+    /**
+     * Restores the previous policy of the thread when closed.
+     */
+    public static final class PolicyScope implements AutoCloseable {
+        private final PolicySettings previous;
+
+        private PolicyScope(PolicySettings previous) {
+            this.previous = previous;
+        }
+
+        @Override
+        public void close() {
+            if (previous == null) {
+                policies.remove();
+            } else {
+                policies.set(previous);
+            }
+        }
+    }
+}
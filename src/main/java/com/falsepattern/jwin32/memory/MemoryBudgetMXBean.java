@@ -0,0 +1,69 @@
+/*
+ * Copyright (c) 2021 FalsePattern
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.falsepattern.jwin32.memory;
+
+import java.util.Map;
+
+/**
+ * The JMX management interface for the native memory budget. See {@link MemoryBudgetMetrics#register()}.
+ */
+public interface MemoryBudgetMXBean {
+    /**
+     * @return The global limit, or 0 if unlimited
+     */
+    long getLimit();
+
+    /**
+     * @return The amount of bytes charged to the budget
+     */
+    long getUsedBytes();
+
+    /**
+     * @return The used fraction of the global limit, or 0 if unlimited
+     */
+    double getUtilization();
+
+    /**
+     * @return The amount of bytes charged to every category with a limit
+     */
+    Map<String, Long> getCategoryUsedBytes();
+
+    /**
+     * @return The used fraction of the limit of every category
+     */
+    Map<String, Double> getCategoryUtilization();
+
+    /**
+     * @return The amount of allocations that didn't fit the budget right away
+     */
+    long getRejections();
+
+    /**
+     * @return The amount of allocations that blocked waiting for memory
+     */
+    long getStalls();
+
+    /**
+     * @return The total time allocations spent blocked, in nanoseconds
+     */
+    long getStallNanos();
+}
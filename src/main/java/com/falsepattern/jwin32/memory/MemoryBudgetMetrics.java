@@ -0,0 +1,97 @@
+/*
+ * Copyright (c) 2021 FalsePattern
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.falsepattern.jwin32.memory;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Exposes the {@link MemoryBudget} over JMX, under the {@value #OBJECT_NAME} object name. Registered together with
+ * {@link MemoryStackMetrics} when the {@value MemoryStackMetrics#PROPERTY_JMX} system property is set.
+ */
+public class MemoryBudgetMetrics implements MemoryBudgetMXBean {
+    public static final String OBJECT_NAME = "com.falsepattern.jwin32:type=MemoryBudget";
+
+    private MemoryBudgetMetrics() {}
+
+    /**
+     * Registers the memory budget MXBean on the platform MBean server. Calling this multiple times is harmless.
+     */
+    public static synchronized void register() {
+        try {
+            var server = ManagementFactory.getPlatformMBeanServer();
+            var name = new ObjectName(OBJECT_NAME);
+            if (!server.isRegistered(name)) {
+                server.registerMBean(new MemoryBudgetMetrics(), name);
+            }
+        } catch (JMException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    @Override
+    public long getLimit() {
+        return MemoryBudget.global().limit();
+    }
+
+    @Override
+    public long getUsedBytes() {
+        return MemoryBudget.global().usedBytes();
+    }
+
+    @Override
+    public double getUtilization() {
+        return MemoryBudget.global().utilization();
+    }
+
+    @Override
+    public Map<String, Long> getCategoryUsedBytes() {
+        var result = new TreeMap<String, Long>();
+        MemoryBudget.categories().forEach((name, account) -> result.put(name, account.usedBytes()));
+        return result;
+    }
+
+    @Override
+    public Map<String, Double> getCategoryUtilization() {
+        var result = new TreeMap<String, Double>();
+        MemoryBudget.categories().forEach((name, account) -> result.put(name, account.utilization()));
+        return result;
+    }
+
+    @Override
+    public long getRejections() {
+        return MemoryBudget.rejections();
+    }
+
+    @Override
+    public long getStalls() {
+        return MemoryBudget.stalls();
+    }
+
+    @Override
+    public long getStallNanos() {
+        return MemoryBudget.stallNanos();
+    }
+}
@@ -0,0 +1,116 @@
+/*
+ * Copyright (c) 2021 FalsePattern
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.falsepattern.jwin32.memory;
+
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The checking mode of the memory package, selected with the {@value #PROPERTY_MODE} system property, so the same
+ * binary can run with extra safety checks in tests and without any in production.
+ * <ul>
+ *     <li>{@code checked}: {@link MemoryStack} allocations are followed by canaries, which are verified when their
+ *     frame is popped, stack segments are bound to their frame's scope and popped memory is poisoned, to catch uses
+ *     after pop, {@link MemoryUtil} segments are bound to a scope that is closed when they're freed, to catch uses after
+ *     free, and freeing a {@link MemoryUtil} or {@link SlabAllocator} block twice reports where it was allocated
+ *     and first freed. Only the most recent frees are remembered (4096 by default, set with
+ *     {@value #PROPERTY_FREED_HISTORY}), so freeing a block again long after its first free is reported without
+ *     its sites.</li>
+ *     <li>{@code default}: the regular scope checks.</li>
+ *     <li>{@code unchecked}: no frame scopes are created, and segments are handed out in the global scope, so
+ *     accessing them skips the liveness checks.</li>
+ * </ul>
+ */
+public final class MemoryChecks {
+    public static final String PROPERTY_MODE = "jwin32.memory.mode";
+    public static final String PROPERTY_FREED_HISTORY = "jwin32.memory.checks.freedHistory";
+
+    public enum Mode {
+        UNCHECKED,
+        DEFAULT,
+        CHECKED
+    }
+
+    static final Mode MODE = Mode.valueOf(System.getProperty(PROPERTY_MODE, "default").toUpperCase(Locale.ROOT));
+    static final boolean CHECKED = MODE == Mode.CHECKED;
+    static final boolean UNCHECKED = MODE == Mode.UNCHECKED;
+    private static final int FREED_HISTORY = Integer.getInteger(PROPERTY_FREED_HISTORY, 4096);
+
+    //Only used in checked mode. Live blocks map to their allocation site, freed blocks to their allocation and free site.
+    //The freed map only keeps the most recent frees, otherwise every distinct address ever freed would keep two stack
+    //traces alive for the rest of the process.
+    private static final ConcurrentHashMap<Long, Throwable> live = new ConcurrentHashMap<>();
+    private static final Map<Long, Throwable[]> freed = new LinkedHashMap<>() {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Long, Throwable[]> eldest) {
+            return size() > FREED_HISTORY;
+        }
+    };
+
+    private MemoryChecks() {}
+
+    /**
+     * @return The mode the memory package runs in
+     */
+    public static Mode mode() {
+        return MODE;
+    }
+
+    /**
+     * Records the allocation site of a block. Only called in checked mode.
+     */
+    static void allocated(long address) {
+        live.put(address, new Throwable("Allocated here"));
+        synchronized (freed) {
+            freed.remove(address);
+        }
+    }
+
+    /**
+     * Checks that a block is live, and records where it was freed. Only called in checked mode.
+     * @throws IllegalStateException If the block was already freed, or never allocated
+     */
+    static void freed(long address) {
+        var site = live.remove(address);
+        if (site != null) {
+            var sites = new Throwable[]{site, new Throwable("Freed here")};
+            synchronized (freed) {
+                freed.put(address, sites);
+            }
+            return;
+        }
+        Throwable[] sites;
+        synchronized (freed) {
+            sites = freed.get(address);
+        }
+        if (sites == null) {
+            throw new IllegalStateException("Tried to free unmanaged address 0x" + Long.toHexString(address) + ", or one that was freed more than " + FREED_HISTORY + " frees ago!");
+        }
+        var e = new IllegalStateException("Double free of address 0x" + Long.toHexString(address) + "!");
+        for (var previous : sites) {
+            e.addSuppressed(previous);
+        }
+        throw e;
+    }
+}
@@ -0,0 +1,237 @@
+/*
+ * Copyright (c) 2021 FalsePattern
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.falsepattern.jwin32.memory;
+
+import jdk.jfr.*;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * JDK Flight Recorder events for the memory package. Every event is disabled by default, and a disabled event costs a
+ * single enabled check on its {@link EventType}, without allocating the event, even in the interpreter. So these can be
+ * left in production builds. To turn them on, enable the
+ * <code>com.falsepattern.jwin32.*</code> events in a copy of the JDK's <code>default.jfc</code>, and start the
+ * recording with <code>-XX:StartFlightRecording:settings=&lt;your copy&gt;</code>.
+ * The thread and stack trace of every event are recorded by JFR itself.
+ */
+final class MemoryEvents {
+    static final String MEMORY_UTIL = "MemoryUtil";
+    static final String MEMORY_STACK = "MemoryStack";
+    static final String MEMORY_ARENA = "MemoryArena";
+    static final String SLAB_ALLOCATOR = "SlabAllocator";
+    static final String MAPPED_FILE = "MappedFileAllocator";
+    static final String CONCURRENT_ARENA = "ConcurrentArena";
+
+    //The largest amount of memory any MemoryStack ever had in use at once
+    private static final AtomicLong stackHighWaterMark = new AtomicLong();
+
+    //Checked before an event object is created, as the allocation is only elided once C2 compiles the caller
+    private static final EventType ALLOCATION = EventType.getEventType(Allocation.class);
+    private static final EventType FREE = EventType.getEventType(Free.class);
+    private static final EventType STACK_OVERFLOW = EventType.getEventType(StackOverflow.class);
+    private static final EventType STACK_PUSH = EventType.getEventType(StackPush.class);
+    private static final EventType STACK_POP = EventType.getEventType(StackPop.class);
+
+    static {
+        FlightRecorder.addPeriodicEvent(LiveBytes.class, () -> {
+            var event = new LiveBytes();
+            var registry = MemoryUtil.instance.registry;
+            event.bytes = registry.liveBytes();
+            event.blocks = registry.liveBlocks();
+            event.commit();
+        });
+        FlightRecorder.addPeriodicEvent(StackHighWaterMark.class, () -> {
+            var event = new StackHighWaterMark();
+            event.bytes = stackHighWaterMark.get();
+            event.commit();
+        });
+    }
+
+    private MemoryEvents() {}
+
+    /**
+     * Makes sure the periodic events are registered before a recording starts.
+     */
+    static void init() {
+    }
+
+    static void allocation(String allocator, long address, long size, long alignment) {
+        if (!ALLOCATION.isEnabled()) return;
+        var event = new Allocation();
+        event.allocator = allocator;
+        event.address = address;
+        event.size = size;
+        event.alignment = alignment;
+        event.commit();
+    }
+
+    static void free(String allocator, long address, long size) {
+        if (!FREE.isEnabled()) return;
+        var event = new Free();
+        event.allocator = allocator;
+        event.address = address;
+        event.size = size;
+        event.commit();
+    }
+
+    static void stackOverflow(long requested, long chunkSize, long reserved, boolean failed) {
+        if (!STACK_OVERFLOW.isEnabled()) return;
+        var event = new StackOverflow();
+        event.requested = requested;
+        event.chunkSize = chunkSize;
+        event.reserved = reserved;
+        event.failed = failed;
+        event.commit();
+    }
+
+    static void stackPush(int depth, long used) {
+        if (!STACK_PUSH.isEnabled()) return;
+        var event = new StackPush();
+        event.depth = depth;
+        event.used = used;
+        event.commit();
+    }
+
+    static void stackPop(int depth, long used, long released) {
+        if (!STACK_POP.isEnabled()) return;
+        var event = new StackPop();
+        event.depth = depth;
+        event.used = used;
+        event.released = released;
+        event.commit();
+    }
+
+    /**
+     * Called by the stacks whenever their own high-water mark grows.
+     */
+    static void stackHighWaterMark(long bytes) {
+        stackHighWaterMark.accumulateAndGet(bytes, Math::max);
+    }
+
+    @Name("com.falsepattern.jwin32.NativeAllocation")
+    @Label("Native Allocation")
+    @Category({"jwin32", "Memory"})
+    @Description("A block of native memory was allocated")
+    @Enabled(false)
+    static final class Allocation extends Event {
+        @Label("Allocator")
+        String allocator;
+        @Label("Address")
+        @jdk.jfr.MemoryAddress
+        long address;
+        @Label("Size")
+        @DataAmount
+        long size;
+        @Label("Alignment")
+        @DataAmount
+        long alignment;
+    }
+
+    @Name("com.falsepattern.jwin32.NativeFree")
+    @Label("Native Free")
+    @Category({"jwin32", "Memory"})
+    @Description("A block of native memory was released")
+    @Enabled(false)
+    static final class Free extends Event {
+        @Label("Allocator")
+        String allocator;
+        @Label("Address")
+        @jdk.jfr.MemoryAddress
+        long address;
+        @Label("Size")
+        @DataAmount
+        long size;
+    }
+
+    @Name("com.falsepattern.jwin32.MemoryStackOverflow")
+    @Label("Memory Stack Overflow")
+    @Category({"jwin32", "Memory"})
+    @Description("A memory stack frame outgrew its current chunk")
+    @Enabled(false)
+    static final class StackOverflow extends Event {
+        @Label("Requested Size")
+        @DataAmount
+        long requested;
+        @Label("New Chunk Size")
+        @DataAmount
+        long chunkSize;
+        @Label("Reserved Before Overflow")
+        @DataAmount
+        long reserved;
+        @Label("Failed")
+        @Description("The stack hit its maximum size, and the allocation failed")
+        boolean failed;
+    }
+
+    @Name("com.falsepattern.jwin32.MemoryStackPush")
+    @Label("Memory Stack Push")
+    @Category({"jwin32", "Memory"})
+    @Enabled(false)
+    static final class StackPush extends Event {
+        @Label("Depth")
+        int depth;
+        @Label("Used")
+        @DataAmount
+        long used;
+    }
+
+    @Name("com.falsepattern.jwin32.MemoryStackPop")
+    @Label("Memory Stack Pop")
+    @Category({"jwin32", "Memory"})
+    @Enabled(false)
+    static final class StackPop extends Event {
+        @Label("Depth")
+        int depth;
+        @Label("Used")
+        @DataAmount
+        long used;
+        @Label("Released")
+        @DataAmount
+        long released;
+    }
+
+    @Name("com.falsepattern.jwin32.NativeLiveBytes")
+    @Label("Native Live Bytes")
+    @Category({"jwin32", "Memory"})
+    @Description("Memory currently allocated through MemoryUtil")
+    @Enabled(false)
+    @Period("1 s")
+    static final class LiveBytes extends Event {
+        @Label("Bytes")
+        @DataAmount
+        long bytes;
+        @Label("Blocks")
+        long blocks;
+    }
+
+    @Name("com.falsepattern.jwin32.MemoryStackHighWaterMark")
+    @Label("Memory Stack High-Water Mark")
+    @Category({"jwin32", "Memory"})
+    @Description("The most memory any single memory stack ever had in use")
+    @Enabled(false)
+    @Period("1 s")
+    static final class StackHighWaterMark extends Event {
+        @Label("Bytes")
+        @DataAmount
+        long bytes;
+    }
+}
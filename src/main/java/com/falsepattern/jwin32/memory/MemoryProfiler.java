@@ -0,0 +1,231 @@
+/*
+ * Copyright (c) 2021 FalsePattern
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.falsepattern.jwin32.memory;
+
+import jdk.incubator.foreign.MemoryAddress;
+import jdk.incubator.foreign.MemorySegment;
+import jdk.incubator.foreign.ResourceScope;
+
+import java.io.PrintStream;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * An opt-in, sampling leak profiler for the allocators that free individual blocks ({@link MemoryUtil} and
+ * {@link SlabAllocator}). Stacks and arenas release their memory in bulk, so they can't leak single blocks, and are
+ * not tracked.
+ * <p>
+ * Setting the {@value #PROPERTY_RATE} system property to N records the allocation site of roughly one in N
+ * allocations, until the block is freed. {@link #report()} then estimates the live bytes of every site and category by
+ * scaling the sampled blocks up by N. With profiling disabled (the default), the allocators skip it entirely. When
+ * enabled, unsampled allocations only cost a random number, and every free a lookup in an off-heap map.
+ * <p>
+ * Allocations can be tagged with a category, similar to the categories of the JVM's native memory tracking, with
+ * {@link #category(String)}. The report is also printed to {@link System#err} at shutdown, unless the
+ * {@value #PROPERTY_REPORT_AT_EXIT} system property is set to false.
+ */
+public final class MemoryProfiler {
+    public static final String PROPERTY_RATE = "jwin32.memory.profile.rate";
+    public static final String PROPERTY_DEPTH = "jwin32.memory.profile.depth";
+    public static final String PROPERTY_REPORT_AT_EXIT = "jwin32.memory.profile.reportAtExit";
+    public static final String UNTAGGED = "untagged";
+    private static final String PACKAGE_PREFIX = MemoryProfiler.class.getPackageName() + ".";
+
+    static final int RATE = Integer.getInteger(PROPERTY_RATE, 0);
+    static final boolean ENABLED = RATE > 0;
+    private static final int DEPTH = Integer.getInteger(PROPERTY_DEPTH, 8);
+
+    private static final ThreadLocal<String> category = ThreadLocal.withInitial(() -> UNTAGGED);
+    private static final AtomicLong nextId = new AtomicLong();
+    //Sampled addresses map to sample ids. Off-heap, so frees don't box, and backed by the C heap directly, so the
+    //profiler doesn't profile its own table.
+    private static final ConcurrentNativeLongMap sampledAddresses = ENABLED ? new ConcurrentNativeLongMap(UntrackedAllocator.INSTANCE, 1024) : null;
+    private static final ConcurrentHashMap<Long, Sample> samples = new ConcurrentHashMap<>();
+
+    static {
+        if (ENABLED && !"false".equalsIgnoreCase(System.getProperty(PROPERTY_REPORT_AT_EXIT))) {
+            Runtime.getRuntime().addShutdownHook(new Thread(() -> System.err.print(report()), "jwin32 memory profiler report"));
+        }
+    }
+
+    private MemoryProfiler() {}
+
+    /**
+     * @return True if the {@value #PROPERTY_RATE} system property enabled profiling
+     */
+    public static boolean isEnabled() {
+        return ENABLED;
+    }
+
+    /**
+     * Tags the allocations of the current thread with a category, until the returned tag is closed. Tags can be
+     * nested, closing one restores the previous category. The categories are also used by the {@link MemoryBudget},
+     * and work even if profiling is disabled.
+     * @param name The category of the allocations
+     * @return A tag that restores the previous category when closed
+     */
+    public static Tag category(String name) {
+        var previous = category.get();
+        category.set(name);
+        return new Tag(previous);
+    }
+
+    static String currentCategory() {
+        return category.get();
+    }
+
+    /**
+     * Called by the allocators after every allocation, when profiling is enabled.
+     */
+    static void allocated(String allocator, long address, long size) {
+        if (RATE > 1 && ThreadLocalRandom.current().nextInt(RATE) != 0) return;
+        var site = StackWalker.getInstance().walk(frames -> frames.dropWhile(frame -> frame.getClassName().startsWith(PACKAGE_PREFIX))
+                                                                  .limit(DEPTH)
+                                                                  .map(StackWalker.StackFrame::toStackTraceElement)
+                                                                  .toArray(StackTraceElement[]::new));
+        var id = nextId.incrementAndGet();
+        samples.put(id, new Sample(allocator, category.get(), size, site));
+        sampledAddresses.put(address, id);
+    }
+
+    /**
+     * Called by the allocators before every free, when profiling is enabled.
+     */
+    static void freed(long address) {
+        var id = sampledAddresses.get(address, 0);
+        if (id != 0) {
+            sampledAddresses.remove(address);
+            samples.remove(id);
+        }
+    }
+
+    /**
+     * Estimates the live native memory of every category and allocation site from the samples.
+     * @return A human readable report, sorted by estimated live bytes
+     */
+    public static String report() {
+        if (!ENABLED) return "Memory profiling is disabled, set " + PROPERTY_RATE + " to enable it.\n";
+        var categories = new HashMap<String, long[]>();
+        var sites = new HashMap<List<Object>, long[]>();
+        for (var sample : samples.values()) {
+            accumulate(categories.computeIfAbsent(sample.category, key -> new long[2]), sample.size);
+            accumulate(sites.computeIfAbsent(List.of(sample.category, sample.allocator, Arrays.asList(sample.site)), key -> new long[2]), sample.size);
+        }
+        var out = new StringBuilder();
+        out.append("Native memory by category (sampling 1 in ").append(RATE).append(" allocations):\n");
+        categories.entrySet().stream()
+                  .sorted((a, b) -> Long.compare(b.getValue()[1], a.getValue()[1]))
+                  .forEach(entry -> out.append(String.format("  %-24s ~%d bytes in ~%d blocks%n", entry.getKey(), entry.getValue()[1] * RATE, entry.getValue()[0] * RATE)));
+        out.append("Native memory by allocation site:\n");
+        sites.entrySet().stream()
+             .sorted((a, b) -> Long.compare(b.getValue()[1], a.getValue()[1]))
+             .forEach(entry -> {
+                 var key = entry.getKey();
+                 out.append(String.format("  ~%d bytes in ~%d blocks, %s from %s%n", entry.getValue()[1] * RATE, entry.getValue()[0] * RATE, key.get(0), key.get(1)));
+                 for (var element : (List<?>) key.get(2)) {
+                     out.append("      at ").append(element).append('\n');
+                 }
+             });
+        return out.toString();
+    }
+
+    /**
+     * Prints the {@link #report()}.
+     * @param out The stream to print to
+     */
+    public static void printReport(PrintStream out) {
+        out.print(report());
+    }
+
+    private static void accumulate(long[] totals, long size) {
+        totals[0]++;
+        totals[1] += size;
+    }
+
+    private static final class Sample {
+        final String allocator;
+        final String category;
+        final long size;
+        final StackTraceElement[] site;
+
+        Sample(String allocator, String category, long size, StackTraceElement[] site) {
+            this.allocator = allocator;
+            this.category = category;
+            this.size = size;
+            this.site = site;
+        }
+    }
+
+    /**
+     * Restores the previous category of the thread when closed.
+     */
+    public static final class Tag implements AutoCloseable {
+        private final String previous;
+
+        private Tag(String previous) {
+            this.previous = previous;
+        }
+
+        @Override
+        public void close() {
+            category.set(previous);
+        }
+    }
+
+    /**
+     * Allocates straight from the C heap, bypassing {@link MemoryUtil} and thus the profiler.
+     */
+    private enum UntrackedAllocator implements MemoryAllocator {
+        INSTANCE;
+
+        //What malloc guarantees on 64 bit platforms
+        private static final long MAX_ALIGNMENT = 16;
+
+        private static MemorySegment segment(long address, long size) {
+            return MemoryAddress.ofLong(address).asSegment(size, ResourceScope.globalScope());
+        }
+
+        @Override
+        public MemorySegment mallocAligned(long size, long alignment) {
+            if (alignment > MAX_ALIGNMENT) throw new IllegalArgumentException("Tried to allocate with alignment " + alignment + ", which is greater than the maximum " + MAX_ALIGNMENT);
+            return segment(NativeHeap.malloc(Math.max(size, 1)), size);
+        }
+
+        @Override
+        public MemorySegment callocAligned(long size, long alignment) {
+            if (alignment > MAX_ALIGNMENT) throw new IllegalArgumentException("Tried to allocate with alignment " + alignment + ", which is greater than the maximum " + MAX_ALIGNMENT);
+            return segment(NativeHeap.calloc(Math.max(size, 1)), size);
+        }
+
+        @Override
+        public MemorySegment malloc(long size) {
+            return mallocAligned(size, 1);
+        }
+
+        @Override
+        public void nfree(long address, long size) {
+            NativeHeap.free(address);
+        }
+    }
+}
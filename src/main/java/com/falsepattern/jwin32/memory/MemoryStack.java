@@ -21,65 +21,386 @@
  */
 package com.falsepattern.jwin32.memory;
 
+import jdk.incubator.foreign.MemoryAddress;
 import jdk.incubator.foreign.MemorySegment;
 import jdk.incubator.foreign.ResourceScope;
 
-import java.util.Stack;
+import java.util.*;
 
 /**
  * A thread local allocated memory segment, which is useful for allocating short-lived native memory, such as configuration structs.
+ * <p>
+ * By default, every thread gets its own stack, which lives as long as the thread does. Setting the
+ * {@value #PROPERTY_MODE} system property to {@code pooled} makes {@link #stackPush()} lease a stack from a shared
+ * {@link MemoryStackPool} of {@value #PROPERTY_POOL_SIZE} stacks instead, which is returned when the outermost frame is
+ * popped. This keeps the native memory bounded with many (virtual) threads. Hot code can also skip the thread local
+ * lookup entirely by leasing a stack with {@link #lease()} and passing it along explicitly. Frames that need to be
+ * shared with other threads can be opened with {@link #stackPushShared()}.
+ * <p>
+ * When a frame outgrows the root segment, additional chunks are chained onto the stack, and released again when the
+ * frame that needed them is popped. The root size and the total size limit of the thread local stacks can be set with
+ * the {@value #PROPERTY_SIZE} and {@value #PROPERTY_MAX_SIZE} system properties (in bytes), or per stack through
+ * {@link #builder()}.
+ * <p>
+ * The usage of every live stack can be inspected through {@link #statistics()}, or over JMX by calling
+ * {@link MemoryStackMetrics#register()} (or setting the {@value MemoryStackMetrics#PROPERTY_JMX} system property).
  */
 public class MemoryStack implements MemoryAllocator, AutoCloseable {
+    public static final String PROPERTY_SIZE = "jwin32.memory.stack.size";
+    public static final String PROPERTY_MAX_SIZE = "jwin32.memory.stack.maxSize";
+    public static final String PROPERTY_MODE = "jwin32.memory.stack.mode";
+    public static final String PROPERTY_POOL_SIZE = "jwin32.memory.stack.poolSize";
     private static final long MAX_ALIGNMENT = 0x1000;
+    private static final int INITIAL_FRAME_CAPACITY = 16;
+    private static final int INITIAL_CHUNK_CAPACITY = 4;
+    //Checked mode only, written after every allocation and verified on pop
+    private static final byte CANARY = (byte) 0xCA;
+    private static final long CANARY_SIZE = 8;
+    private static final byte POISON = (byte) 0xDD;
+    //4 MB thread local stack by default, which may grow up to 64 MB
+    private static final long DEFAULT_SIZE = Long.getLong(PROPERTY_SIZE, 4 * 1024 * 1024);
+    private static final long DEFAULT_MAX_SIZE = Long.getLong(PROPERTY_MAX_SIZE, 64 * 1024 * 1024);
+    private static final boolean POOLED = "pooled".equalsIgnoreCase(System.getProperty(PROPERTY_MODE, "threadLocal"));
 
-    private final MemorySegment rootSegment;
     @SuppressWarnings("FieldCanBeLocal")
     private final ResourceScope scope;
-    private final Stack<Long> offsets = new Stack<>();
-    private final Stack<ResourceScope> scopes = new Stack<>();
+    private final long maxSize;
+    //Index 0 is the root segment, the rest are overflow chunks allocated with NativeHeap.calloc
+    private MemorySegment[] chunks = new MemorySegment[INITIAL_CHUNK_CAPACITY];
+    //The scopes of the overflow chunks. Closing one frees its chunk, and makes stale segments inside it inaccessible.
+    //Shared, as pooled stacks and shared frames move between threads.
+    private ResourceScope[] chunkScopes = new ResourceScope[INITIAL_CHUNK_CAPACITY];
+    //Every chunk starts out zeroed. Only the bytes below the dirty mark of a chunk were ever handed out, and may need
+    //to be cleared by calloc.
+    private long[] chunkDirty = new long[INITIAL_CHUNK_CAPACITY];
+    private int chunk = 0;
+    private MemorySegment currentChunk;
+    private long currentChunkAddress;
+    //Total size of the chunks below the current one
+    private long chunkBase;
+    private long reserved;
+    private long highWaterMark;
 
-    private ResourceScope currentScope;
+    //Base offsets and chunk indices of the enclosing frames, indexed by depth
+    private long[] frames = new long[INITIAL_FRAME_CAPACITY];
+    private int[] frameChunks = new int[INITIAL_FRAME_CAPACITY];
+    //Frame scopes, indexed by depth. Only created when someone asks for them through scope().
+    private ResourceScope[] scopes = new ResourceScope[INITIAL_FRAME_CAPACITY];
+
+    //Checked mode only. Canary addresses and the allocation sites they guard, plus the canary count at each push.
+    private long[] canaries;
+    private Throwable[] canarySites;
+    private int canaryCount;
+    private int[] frameCanaries;
+
+    private int depth = 0;
+    private int baseChunk = 0;
     private long baseOffset = 0;
     private long currentOffset = 0;
 
-    private static final ThreadLocal<MemoryStack> threadLocalStack = ThreadLocal.withInitial(() -> {
-        var scope = ResourceScope.newImplicitScope();
-        //4 MB thread local stack
-        var segment = MemorySegment.allocateNative(4 * 1024 * 1024, MAX_ALIGNMENT, scope);
-        return new MemoryStack(segment, scope);
-    });
+    private final String name;
+    private long overflowCount;
+    //The pool this stack goes back to when its outermost frame is popped, null for thread local and standalone stacks
+    private final MemoryStackPool pool;
+    //Whether this stack is the one leasedStack holds for the current thread
+    private boolean bound;
+
+    //Every live stack, for the statistics. Weak, so the stacks of dead threads can be collected.
+    private static final Set<MemoryStack> stacks = Collections.synchronizedSet(Collections.newSetFromMap(new WeakHashMap<>()));
+
+    private static final ThreadLocal<MemoryStack> threadLocalStack = ThreadLocal.withInitial(() -> builder().name(Thread.currentThread().getName()).build());
+
+    //Only used in pooled mode. Holds the stack the thread leased, until its outermost frame is popped.
+    private static final ThreadLocal<MemoryStack> leasedStack = new ThreadLocal<>();
+
+    private static class SharedPool {
+        private static final MemoryStackPool INSTANCE = builder().name("pooled").buildPool(Integer.getInteger(PROPERTY_POOL_SIZE, Runtime.getRuntime().availableProcessors() * 4));
+    }
+
+    static {
+        MemoryStackMetrics.registerIfRequested();
+    }
+
+    MemoryStack(String name, long size, long maxSize, MemoryStackPool pool) {
+        this.scope = ResourceScope.newImplicitScope();
+        this.name = name;
+        this.maxSize = maxSize;
+        this.pool = pool;
+        chunks[0] = currentChunk = MemorySegment.allocateNative(size, MAX_ALIGNMENT, scope);
+        currentChunkAddress = currentChunk.address().toRawLongValue();
+        reserved = size;
+        if (MemoryChecks.CHECKED) {
+            canaries = new long[INITIAL_FRAME_CAPACITY];
+            canarySites = new Throwable[INITIAL_FRAME_CAPACITY];
+            frameCanaries = new int[INITIAL_FRAME_CAPACITY];
+        }
+        stacks.add(this);
+    }
+
+    /**
+     * Creates a builder for standalone memory stacks, which are not bound to any thread. The sizes default to the
+     * values of the system properties used by the thread local stacks.
+     * @return A new memory stack builder
+     */
+    public static Builder builder() {
+        return new Builder();
+    }
+
+    private long alignedOffset(long alignment) {
+        var misalignment = (currentChunkAddress + currentOffset) % alignment;
+        return misalignment == 0 ? currentOffset : currentOffset + alignment - misalignment;
+    }
+
+    /**
+     * Chains a new chunk onto the stack that can fit at least the given allocation.
+     */
+    private void grow(long size, long alignment) {
+        var chunkSize = Math.max(chunks[0].byteSize(), size + alignment - 1);
+        overflowCount++;
+        if (reserved + chunkSize > maxSize) {
+            MemoryEvents.stackOverflow(size, chunkSize, reserved, true);
+            throw new IllegalStateException("Memory stack overflow! Tried to allocate " + size + " bytes, but the stack has already reserved " + reserved + " bytes out of the maximum " + maxSize);
+        }
+        MemoryEvents.stackOverflow(size, chunkSize, reserved, false);
+        var address = NativeHeap.calloc(chunkSize);
+        if (++chunk == chunks.length) {
+            chunks = Arrays.copyOf(chunks, chunks.length * 2);
+            chunkDirty = Arrays.copyOf(chunkDirty, chunkDirty.length * 2);
+            chunkScopes = Arrays.copyOf(chunkScopes, chunkScopes.length * 2);
+        }
+        var chunkScope = ResourceScope.newSharedScope();
+        chunkScope.addCloseAction(() -> NativeHeap.free(address));
+        chunkScopes[chunk] = chunkScope;
+        chunks[chunk] = currentChunk = MemoryAddress.ofLong(address).asSegment(chunkSize, chunkScope);
+        chunkDirty[chunk] = 0;
+        currentChunkAddress = address;
+        chunkBase += chunks[chunk - 1].byteSize();
+        currentOffset = 0;
+        reserved += chunkSize;
+    }
+
+    /**
+     * Releases every overflow chunk above the current one.
+     */
+    private void shrink() {
+        for (int i = chunks.length - 1; i > chunk; i--) {
+            var overflow = chunks[i];
+            if (overflow == null) continue;
+            chunks[i] = null;
+            reserved -= overflow.byteSize();
+            var chunkScope = chunkScopes[i];
+            chunkScopes[i] = null;
+            chunkScope.close();
+        }
+        currentChunk = chunks[chunk];
+        currentChunkAddress = currentChunk.address().toRawLongValue();
+        chunkBase = 0;
+        for (int i = 0; i < chunk; i++) {
+            chunkBase += chunks[i].byteSize();
+        }
+    }
+
+    /**
+     * @return The amount of bytes in use, including the unusable tails of the chunks below the current one
+     */
+    private long used() {
+        return chunkBase + currentOffset;
+    }
+
+    /**
+     * Bumps the stack pointer past a new allocation.
+     * @return The offset of the allocation inside the current chunk
+     */
+    private long bump(long size, long alignment) {
+        if (alignment > MAX_ALIGNMENT) throw new IllegalArgumentException("Tried to allocate with alignment " + alignment + ", which is greater than the maximum " + MAX_ALIGNMENT);
+        var reserve = MemoryChecks.CHECKED ? size + CANARY_SIZE : size;
+        var offset = alignedOffset(alignment);
+        if (offset + reserve > currentChunk.byteSize()) {
+            grow(reserve, alignment);
+            offset = alignedOffset(alignment);
+        }
+        currentOffset = offset + reserve;
+        if (MemoryChecks.CHECKED) {
+            addCanary(offset + size);
+        }
+        var used = used();
+        if (used > highWaterMark) {
+            highWaterMark = used;
+            MemoryEvents.stackHighWaterMark(used);
+        }
+        MemoryEvents.allocation(MemoryEvents.MEMORY_STACK, currentChunkAddress + offset, size, alignment);
+        return offset;
+    }
+
+    private void addCanary(long offset) {
+        if (canaryCount == canaries.length) {
+            canaries = Arrays.copyOf(canaries, canaryCount * 2);
+            canarySites = Arrays.copyOf(canarySites, canaryCount * 2);
+        }
+        var address = currentChunkAddress + offset;
+        MemoryUtil.Fill(address, CANARY_SIZE, CANARY);
+        markDirty(offset + CANARY_SIZE);
+        canaries[canaryCount] = address;
+        canarySites[canaryCount++] = new Throwable("Allocated here");
+    }
+
+    private static boolean intact(long canary) {
+        for (int i = 0; i < CANARY_SIZE; i++) {
+            if (MemoryUtil.GetByte(canary + i) != CANARY) return false;
+        }
+        return true;
+    }
+
+    /**
+     * Verifies and drops the canaries of the frame being popped.
+     * @return The error to throw once the pop is done, or null if every canary is intact
+     */
+    private IllegalStateException checkCanaries(int from) {
+        IllegalStateException error = null;
+        for (int i = from; i < canaryCount && error == null; i++) {
+            if (!intact(canaries[i])) {
+                error = new IllegalStateException("Memory stack canary at 0x" + Long.toHexString(canaries[i]) + " was overwritten, the allocation before it overflowed!", canarySites[i]);
+            }
+        }
+        Arrays.fill(canarySites, from, canaryCount, null);
+        canaryCount = from;
+        return error;
+    }
+
+    /**
+     * Overwrites the memory released by a pop, so reads through stale addresses stand out.
+     */
+    private void poison(long end) {
+        if (end > baseOffset) {
+            currentChunk.asSlice(baseOffset, end - baseOffset).fill(POISON);
+        }
+    }
 
-    private MemoryStack(MemorySegment rootSegment, ResourceScope scope) {
-        this.scope = scope;
-        this.rootSegment = rootSegment;
-        this.currentScope = ResourceScope.newConfinedScope();
+    private void markDirty(long end) {
+        if (end > chunkDirty[chunk]) chunkDirty[chunk] = end;
     }
 
-    private void align(long alignment) {
-        if (currentOffset % alignment != 0)
-            currentOffset += alignment - (currentOffset % alignment);
+    /**
+     * Zeroes a new allocation in the current chunk. Only the part below the dirty mark can contain stale data, the
+     * rest is still zero from when the chunk was allocated.
+     */
+    private void clear(long offset, long size) {
+        var dirtyEnd = Math.min(offset + size, chunkDirty[chunk]);
+        if (dirtyEnd > offset) {
+            currentChunk.asSlice(offset, dirtyEnd - offset).fill((byte) 0);
+        }
+        markDirty(offset + size);
+    }
+
+    /**
+     * In checked mode, stack segments are bound to the scope of their frame, so accessing them after a pop fails. In
+     * unchecked mode, they're in the global scope, and skip the liveness checks.
+     */
+    private MemorySegment segment(long offset, long size) {
+        if (MemoryChecks.CHECKED) {
+            return MemoryAddress.ofLong(currentChunkAddress + offset).asSegment(size, scope());
+        } else if (MemoryChecks.UNCHECKED) {
+            return MemoryAddress.ofLong(currentChunkAddress + offset).asSegment(size, ResourceScope.globalScope());
+        }
+        return currentChunk.asSlice(offset, size);
     }
 
     @Override
     public MemorySegment mallocAligned(long size, long alignment) {
-        if (alignment > MAX_ALIGNMENT) throw new IllegalArgumentException("Tried to allocate with alignment " + alignment + ", which is greater than the maximum " + MAX_ALIGNMENT);
-        align(alignment);
-        return malloc(size);
+        var offset = bump(size, alignment);
+        markDirty(offset + size);
+        return segment(offset, size);
+    }
+
+    @Override
+    public MemorySegment callocAligned(long size, long alignment) {
+        var offset = bump(size, alignment);
+        clear(offset, size);
+        return segment(offset, size);
     }
 
     @Override
     public MemorySegment malloc(long size) {
-        var newSegment = rootSegment.asSlice(currentOffset, size);
-        currentOffset += size;
-        return newSegment;
+        return mallocAligned(size, 1);
+    }
+
+    @Override
+    public long nmallocAligned(long size, long alignment) {
+        var offset = bump(size, alignment);
+        markDirty(offset + size);
+        return currentChunkAddress + offset;
+    }
+
+    @Override
+    public long ncallocAligned(long size, long alignment) {
+        var offset = bump(size, alignment);
+        clear(offset, size);
+        return currentChunkAddress + offset;
+    }
+
+    @Override
+    public long nmalloc(long size) {
+        return nmallocAligned(size, 1);
     }
 
     /**
      * Retrieves the thread local stack without pushing a new memory scope.
+     * <p>
+     * In pooled mode, this leases a stack for the thread if it doesn't hold one yet. That stack only goes back to the
+     * pool once a frame pushed onto it is popped, so this should be followed by a {@link #push()}.
      * @return The thread's stack
      */
     public static MemoryStack getCurrentStack() {
-        return threadLocalStack.get();
+        if (!POOLED) return threadLocalStack.get();
+        var stack = leasedStack.get();
+        if (stack == null) {
+            stack = sharedPool().acquire();
+            stack.bound = true;
+            leasedStack.set(stack);
+        }
+        return stack;
+    }
+
+    /**
+     * @return The pool {@link #lease()} and the pooled mode of {@link #stackPush()} take their stacks from
+     */
+    public static MemoryStackPool sharedPool() {
+        return SharedPool.INSTANCE;
+    }
+
+    /**
+     * Leases a stack from the {@link #sharedPool()} and pushes a new frame onto it, regardless of the
+     * {@value #PROPERTY_MODE}. The stack is not bound to the current thread, so hot code can pass it along instead of
+     * looking it up again. It goes back to the pool when the pushed frame is popped.
+     * @return A leased memory stack with a new frame pushed
+     */
+    public static MemoryStack lease() {
+        return sharedPool().lease();
+    }
+
+    /**
+     * Opens a {@link SharedFrame} on a stack from the {@link #sharedPool()}. Unlike the frames of {@link #stackPush()},
+     * its segments can be accessed from any thread, and its ownership can be handed over to the thread that closes it.
+     * @return A new shared frame, owned by the current thread
+     */
+    public static SharedFrame stackPushShared() {
+        return sharedPool().leaseShared();
+    }
+
+    /**
+     * Puts a leased stack back into its pool, after its outermost frame was popped.
+     */
+    private void returnToPool() {
+        if (chunk != 0) {
+            chunk = 0;
+            shrink();
+        }
+        currentOffset = baseOffset = 0;
+        if (bound) {
+            bound = false;
+            leasedStack.remove();
+        }
+        pool.release(this);
     }
 
     /**
@@ -87,22 +408,56 @@ public class MemoryStack implements MemoryAllocator, AutoCloseable {
      * @return This memory stack
      */
     public MemoryStack push() {
-        offsets.push(baseOffset);
-        scopes.push(currentScope);
-        currentScope = ResourceScope.newConfinedScope();
+        if (depth + 1 == frames.length) {
+            frames = Arrays.copyOf(frames, frames.length * 2);
+            frameChunks = Arrays.copyOf(frameChunks, frameChunks.length * 2);
+            scopes = Arrays.copyOf(scopes, scopes.length * 2);
+            if (MemoryChecks.CHECKED) {
+                frameCanaries = Arrays.copyOf(frameCanaries, frameCanaries.length * 2);
+            }
+        }
+        if (MemoryChecks.CHECKED) {
+            frameCanaries[depth] = canaryCount;
+        }
+        frames[depth] = baseOffset;
+        frameChunks[depth++] = baseChunk;
         baseOffset = currentOffset;
+        baseChunk = chunk;
+        MemoryEvents.stackPush(depth, used());
         return this;
     }
 
     /**
-     * Pops the topmost memory scope, releasing all segments allocated in that scope.
+     * Pops the topmost memory scope, releasing all segments allocated in that scope, as well as any overflow chunks
+     * chained onto the stack since the matching {@link #push()}.
      */
     public void pop() {
-        if (offsets.isEmpty()) throw new RuntimeException("Tried to pop empty memory stack!");
+        if (depth == 0) throw new RuntimeException("Tried to pop empty memory stack!");
+        var usedBefore = used();
+        var error = MemoryChecks.CHECKED ? checkCanaries(frameCanaries[depth - 1]) : null;
+        var end = currentOffset;
         currentOffset = baseOffset;
-        currentScope.close();
-        currentScope = scopes.pop();
-        baseOffset = offsets.pop();
+        if (chunk != baseChunk) {
+            chunk = baseChunk;
+            shrink();
+            end = Math.min(chunkDirty[chunk], currentChunk.byteSize());
+        }
+        if (MemoryChecks.CHECKED) {
+            poison(end);
+        }
+        var frameScope = scopes[depth];
+        if (frameScope != null) {
+            scopes[depth] = null;
+            frameScope.close();
+        }
+        baseOffset = frames[--depth];
+        baseChunk = frameChunks[depth];
+        var used = used();
+        MemoryEvents.stackPop(depth, used, usedBefore - used);
+        if (depth == 0 && pool != null) {
+            returnToPool();
+        }
+        if (error != null) throw error;
     }
 
     /**
@@ -111,8 +466,24 @@ public class MemoryStack implements MemoryAllocator, AutoCloseable {
      * @return The thread's memory stack
      */
     public static MemoryStack stackPush() {
-        var stack = threadLocalStack.get();
-        return stack.push();
+        return getCurrentStack().push();
+    }
+
+    /**
+     * Takes a snapshot of the usage of every live memory stack. The values are read without synchronizing with the
+     * threads using the stacks, so they may be slightly out of date.
+     * @return The statistics of every live memory stack
+     */
+    public static List<MemoryStackStatistics> statistics() {
+        MemoryStack[] snapshot;
+        synchronized (stacks) {
+            snapshot = stacks.toArray(new MemoryStack[0]);
+        }
+        var result = new ArrayList<MemoryStackStatistics>(snapshot.length);
+        for (var stack : snapshot) {
+            result.add(new MemoryStackStatistics(stack.name, stack.depth, stack.used(), stack.highWaterMark, stack.overflowCount, stack.reserved));
+        }
+        return result;
     }
 
     /**
@@ -124,9 +495,73 @@ public class MemoryStack implements MemoryAllocator, AutoCloseable {
     }
 
     /**
+     * The scope is created lazily on the first call within a frame, so frames that only use {@link #malloc} don't
+     * allocate anything on the heap. In unchecked mode, this is always the global scope.
      * @return The currently active memory scope for functions that require one.
      */
     public ResourceScope scope() {
-        return currentScope;
+        if (MemoryChecks.UNCHECKED) return ResourceScope.globalScope();
+        var frameScope = scopes[depth];
+        if (frameScope == null) {
+            frameScope = scopes[depth] = ResourceScope.newConfinedScope();
+        }
+        return frameScope;
+    }
+
+    /**
+     * Configures and creates standalone {@link MemoryStack}s.
+     */
+    public static class Builder {
+        private long size = DEFAULT_SIZE;
+        private long maxSize = DEFAULT_MAX_SIZE;
+        private String name = "standalone";
+
+        private Builder() {}
+
+        /**
+         * @param name The name the stack is reported with in the statistics
+         * @return This builder
+         */
+        public Builder name(String name) {
+            this.name = name;
+            return this;
+        }
+
+        /**
+         * @param size The size of the root segment, which is allocated up front, in bytes
+         * @return This builder
+         */
+        public Builder initialSize(long size) {
+            this.size = size;
+            return this;
+        }
+
+        /**
+         * @param maxSize The maximum amount of bytes the stack may reserve, including the root segment and all
+         *                overflow chunks
+         * @return This builder
+         */
+        public Builder maxSize(long maxSize) {
+            this.maxSize = maxSize;
+            return this;
+        }
+
+        /**
+         * @return A new memory stack with the configured sizes
+         */
+        public MemoryStack build() {
+            if (size <= 0) throw new IllegalArgumentException("Memory stack size must be positive, got " + size);
+            return new MemoryStack(name, size, Math.max(size, maxSize), null);
+        }
+
+        /**
+         * @param capacity The maximum amount of stacks in the pool
+         * @return A new pool of memory stacks with the configured sizes. The stacks are named after this builder's
+         *         name and their index in the pool.
+         */
+        public MemoryStackPool buildPool(int capacity) {
+            if (size <= 0) throw new IllegalArgumentException("Memory stack size must be positive, got " + size);
+            return new MemoryStackPool(name, size, Math.max(size, maxSize), capacity);
+        }
     }
 }
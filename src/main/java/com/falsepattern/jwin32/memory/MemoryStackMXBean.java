@@ -0,0 +1,59 @@
+/*
+ * Copyright (c) 2021 FalsePattern
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.falsepattern.jwin32.memory;
+
+import java.util.List;
+
+/**
+ * The JMX management interface for the memory stacks. See {@link MemoryStackMetrics#register()}.
+ */
+public interface MemoryStackMXBean {
+    /**
+     * @return The statistics of every live memory stack
+     */
+    List<MemoryStackStatistics> getStacks();
+
+    /**
+     * @return The amount of live memory stacks
+     */
+    int getStackCount();
+
+    /**
+     * @return The amount of bytes currently in use, summed over every stack
+     */
+    long getTotalUsedBytes();
+
+    /**
+     * @return The amount of native memory held by the stacks, summed over every stack
+     */
+    long getTotalReservedBytes();
+
+    /**
+     * @return The largest high-water mark of any live stack
+     */
+    long getMaxHighWaterMark();
+
+    /**
+     * @return The amount of overflows, summed over every stack
+     */
+    long getTotalOverflowCount();
+}
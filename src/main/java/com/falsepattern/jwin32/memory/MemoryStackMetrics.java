@@ -0,0 +1,89 @@
+/*
+ * Copyright (c) 2021 FalsePattern
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.falsepattern.jwin32.memory;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.List;
+
+/**
+ * Exposes the {@link MemoryStack#statistics()} over JMX, under the {@value #OBJECT_NAME} object name.
+ */
+public class MemoryStackMetrics implements MemoryStackMXBean {
+    public static final String PROPERTY_JMX = "jwin32.memory.jmx";
+    public static final String OBJECT_NAME = "com.falsepattern.jwin32:type=MemoryStack";
+
+    private MemoryStackMetrics() {}
+
+    /**
+     * Registers the memory stack MXBean on the platform MBean server. Calling this multiple times is harmless.
+     */
+    public static synchronized void register() {
+        try {
+            var server = ManagementFactory.getPlatformMBeanServer();
+            var name = new ObjectName(OBJECT_NAME);
+            if (!server.isRegistered(name)) {
+                server.registerMBean(new MemoryStackMetrics(), name);
+            }
+        } catch (JMException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    static void registerIfRequested() {
+        if (Boolean.getBoolean(PROPERTY_JMX)) {
+            register();
+            MemoryBudgetMetrics.register();
+        }
+    }
+
+    @Override
+    public List<MemoryStackStatistics> getStacks() {
+        return MemoryStack.statistics();
+    }
+
+    @Override
+    public int getStackCount() {
+        return MemoryStack.statistics().size();
+    }
+
+    @Override
+    public long getTotalUsedBytes() {
+        return MemoryStack.statistics().stream().mapToLong(MemoryStackStatistics::getUsedBytes).sum();
+    }
+
+    @Override
+    public long getTotalReservedBytes() {
+        return MemoryStack.statistics().stream().mapToLong(MemoryStackStatistics::getReservedBytes).sum();
+    }
+
+    @Override
+    public long getMaxHighWaterMark() {
+        return MemoryStack.statistics().stream().mapToLong(MemoryStackStatistics::getHighWaterMark).max().orElse(0);
+    }
+
+    @Override
+    public long getTotalOverflowCount() {
+        return MemoryStack.statistics().stream().mapToLong(MemoryStackStatistics::getOverflowCount).sum();
+    }
+}
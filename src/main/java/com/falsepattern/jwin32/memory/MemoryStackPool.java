@@ -0,0 +1,113 @@
+/*
+ * Copyright (c) 2021 FalsePattern
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.falsepattern.jwin32.memory;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A bounded pool of {@link MemoryStack}s, which are leased for the duration of an outermost frame, and returned to the
+ * pool when that frame is popped. Useful when there are far more threads (such as virtual threads) than threads
+ * actually using a stack at the same time, as thread local stacks keep their native memory until the thread dies.
+ * <p>
+ * Stacks are created lazily, up to the capacity of the pool. When every stack is leased, {@link #lease()} blocks until
+ * one is returned.
+ */
+public final class MemoryStackPool {
+    private final String name;
+    private final long size;
+    private final long maxSize;
+    private final int capacity;
+    private final ArrayBlockingQueue<MemoryStack> idle;
+    private final AtomicInteger created = new AtomicInteger();
+
+    MemoryStackPool(String name, long size, long maxSize, int capacity) {
+        if (capacity <= 0) throw new IllegalArgumentException("Memory stack pool capacity must be positive, got " + capacity);
+        this.name = name;
+        this.size = size;
+        this.maxSize = maxSize;
+        this.capacity = capacity;
+        this.idle = new ArrayBlockingQueue<>(capacity);
+    }
+
+    /**
+     * Leases a stack from the pool, and pushes a new frame onto it. The stack is not bound to any thread, so it should
+     * be passed along explicitly to the code that allocates from it. It goes back to the pool when the pushed frame
+     * is popped.
+     * @return A leased memory stack with a new frame pushed
+     */
+    public MemoryStack lease() {
+        return acquire().push();
+    }
+
+    /**
+     * Leases a stack from the pool, and opens a {@link SharedFrame} on it, which can be handed over to other threads.
+     * The stack goes back to the pool when the frame is closed.
+     * @return A new shared frame, owned by the current thread
+     */
+    public SharedFrame leaseShared() {
+        return new SharedFrame(lease());
+    }
+
+    /**
+     * @return The maximum amount of stacks in this pool
+     */
+    public int capacity() {
+        return capacity;
+    }
+
+    /**
+     * @return The amount of stacks created so far. Only a snapshot.
+     */
+    public int created() {
+        return created.get();
+    }
+
+    /**
+     * @return The amount of stacks currently waiting in the pool. Only a snapshot.
+     */
+    public int idle() {
+        return idle.size();
+    }
+
+    MemoryStack acquire() {
+        var stack = idle.poll();
+        if (stack != null) return stack;
+        while (true) {
+            var count = created.get();
+            if (count >= capacity) break;
+            if (created.compareAndSet(count, count + 1)) {
+                return new MemoryStack(name + "-" + count, size, maxSize, this);
+            }
+        }
+        try {
+            return idle.take();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while waiting for a memory stack from pool " + name, e);
+        }
+    }
+
+    void release(MemoryStack stack) {
+        if (!idle.offer(stack)) throw new IllegalStateException("Memory stack pool " + name + " is already full!");
+    }
+}
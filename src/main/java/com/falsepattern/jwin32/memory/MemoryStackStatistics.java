@@ -0,0 +1,90 @@
+/*
+ * Copyright (c) 2021 FalsePattern
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.falsepattern.jwin32.memory;
+
+/**
+ * A snapshot of the usage of a single {@link MemoryStack}.
+ */
+public class MemoryStackStatistics {
+    private final String name;
+    private final int depth;
+    private final long usedBytes;
+    private final long highWaterMark;
+    private final long overflowCount;
+    private final long reservedBytes;
+
+    public MemoryStackStatistics(String name, int depth, long usedBytes, long highWaterMark, long overflowCount, long reservedBytes) {
+        this.name = name;
+        this.depth = depth;
+        this.usedBytes = usedBytes;
+        this.highWaterMark = highWaterMark;
+        this.overflowCount = overflowCount;
+        this.reservedBytes = reservedBytes;
+    }
+
+    /**
+     * @return The name of the stack. Thread local stacks are named after the thread that created them.
+     */
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * @return The amount of frames currently pushed onto the stack
+     */
+    public int getDepth() {
+        return depth;
+    }
+
+    /**
+     * @return The amount of bytes currently in use
+     */
+    public long getUsedBytes() {
+        return usedBytes;
+    }
+
+    /**
+     * @return The most bytes that were ever in use at once
+     */
+    public long getHighWaterMark() {
+        return highWaterMark;
+    }
+
+    /**
+     * @return How many times a frame outgrew the current chunk of the stack
+     */
+    public long getOverflowCount() {
+        return overflowCount;
+    }
+
+    /**
+     * @return The amount of native memory the stack currently holds, including overflow chunks
+     */
+    public long getReservedBytes() {
+        return reservedBytes;
+    }
+
+    @Override
+    public String toString() {
+        return name + ": depth=" + depth + ", used=" + usedBytes + ", highWaterMark=" + highWaterMark + ", overflows=" + overflowCount + ", reserved=" + reservedBytes;
+    }
+}
@@ -25,22 +25,35 @@ import jdk.incubator.foreign.*;
 
 import java.lang.invoke.VarHandle;
 import java.nio.ByteOrder;
-import java.util.HashMap;
-import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * A generic memory utility class for reading/writing into memory segments, as well as allocating on the global memory scope for long-lived variables.
  * Make sure to {@link #Free(MemorySegment)} every allocated block to avoid memory leaks, as they are not automatically released!
+ * <p>
+ * Allocation and de-allocation are thread safe, and blocks may be freed from any thread. The returned segments live in
+ * the global scope, so accessing a block after it was freed is undefined behaviour, just like in C.
  */
 public class MemoryUtil implements MemoryAllocator {
     static final VarHandle VH_BYTE = MemoryHandles.varHandle(byte.class, ByteOrder.nativeOrder());
     static final VarHandle VH_SHORT = MemoryHandles.varHandle(short.class, ByteOrder.nativeOrder());
     static final VarHandle VH_INT = MemoryHandles.varHandle(int.class, ByteOrder.nativeOrder());
     static final VarHandle VH_LONG = MemoryHandles.varHandle(long.class, ByteOrder.nativeOrder());
-    private final Map<MemorySegment, ResourceScope> scopes = new HashMap<>();
+    static final VarHandle VH_CHAR = MemoryHandles.varHandle(char.class, ByteOrder.nativeOrder());
+    static final VarHandle VH_FLOAT = MemoryHandles.varHandle(float.class, ByteOrder.nativeOrder());
+    static final VarHandle VH_DOUBLE = MemoryHandles.varHandle(double.class, ByteOrder.nativeOrder());
+    //The alignment guaranteed by the native malloc on 64-bit platforms
+    private static final long MALLOC_ALIGNMENT = 16;
+    final AllocationRegistry registry = new AllocationRegistry();
+    //Checked mode only. The scopes of the segments handed out, closed on free so that stale segments can't be used.
+    private final ConcurrentHashMap<Long, ResourceScope> checkedScopes = new ConcurrentHashMap<>();
     public static final MemoryUtil instance = new MemoryUtil();
     private MemoryUtil(){}
 
+    static {
+        MemoryEvents.init();
+    }
+
     /**
      * Reads a single byte from the start of the given segment.
      * @param segment The segment to read from
@@ -131,17 +144,1040 @@ public class MemoryUtil implements MemoryAllocator {
         VH_LONG.set(segment, 0, value.toRawLongValue());
     }
 
+    /**
+     * Reads a char from the start of the given segment.
+     * @param segment The segment to read from
+     * @return The value at the start of the segment
+     */
+    public static char GetChar(MemorySegment segment) {
+        return (char) VH_CHAR.get(segment, 0);
+    }
+
+    /**
+     * Writes a char to the start of the given segment
+     * @param segment The segment to write to
+     * @param value The value to write into the segment
+     */
+    public static void SetChar(MemorySegment segment, char value) {
+        VH_CHAR.set(segment, 0, value);
+    }
+
+    /**
+     * Reads a float from the start of the given segment.
+     * @param segment The segment to read from
+     * @return The value at the start of the segment
+     */
+    public static float GetFloat(MemorySegment segment) {
+        return (float) VH_FLOAT.get(segment, 0);
+    }
+
+    /**
+     * Writes a float to the start of the given segment
+     * @param segment The segment to write to
+     * @param value The value to write into the segment
+     */
+    public static void SetFloat(MemorySegment segment, float value) {
+        VH_FLOAT.set(segment, 0, value);
+    }
+
+    /**
+     * Reads a double from the start of the given segment.
+     * @param segment The segment to read from
+     * @return The value at the start of the segment
+     */
+    public static double GetDouble(MemorySegment segment) {
+        return (double) VH_DOUBLE.get(segment, 0);
+    }
+
+    /**
+     * Writes a double to the start of the given segment
+     * @param segment The segment to write to
+     * @param value The value to write into the segment
+     */
+    public static void SetDouble(MemorySegment segment, double value) {
+        VH_DOUBLE.set(segment, 0, value);
+    }
+
+    /**
+     * Reads 1 byte from the given byte offset of the segment.
+     * @param segment The segment to read from
+     * @param offset The byte offset inside the segment
+     * @return The value at the offset
+     */
+    public static byte GetByte(MemorySegment segment, long offset) {
+        return (byte) VH_BYTE.get(segment, offset);
+    }
+
+    /**
+     * Writes 1 byte to the given byte offset of the segment.
+     * @param segment The segment to write to
+     * @param offset The byte offset inside the segment
+     * @param value The value to write into the segment
+     */
+    public static void SetByte(MemorySegment segment, long offset, byte value) {
+        VH_BYTE.set(segment, offset, value);
+    }
+
+    /**
+     * Reads 2 bytes from the given byte offset of the segment.
+     * @param segment The segment to read from
+     * @param offset The byte offset inside the segment
+     * @return The value at the offset
+     */
+    public static short GetShort(MemorySegment segment, long offset) {
+        return (short) VH_SHORT.get(segment, offset);
+    }
+
+    /**
+     * Writes 2 bytes to the given byte offset of the segment.
+     * @param segment The segment to write to
+     * @param offset The byte offset inside the segment
+     * @param value The value to write into the segment
+     */
+    public static void SetShort(MemorySegment segment, long offset, short value) {
+        VH_SHORT.set(segment, offset, value);
+    }
+
+    /**
+     * Reads an element of a short array stored in the segment.
+     * @param segment The segment to read from
+     * @param index The index of the element
+     * @return The value of the element
+     */
+    public static short GetShortAtIndex(MemorySegment segment, long index) {
+        return (short) VH_SHORT.get(segment, index << 1);
+    }
+
+    /**
+     * Writes an element of a short array stored in the segment.
+     * @param segment The segment to write to
+     * @param index The index of the element
+     * @param value The value to write into the element
+     */
+    public static void SetShortAtIndex(MemorySegment segment, long index, short value) {
+        VH_SHORT.set(segment, index << 1, value);
+    }
+
+    /**
+     * Reads 2 bytes from the given byte offset of the segment.
+     * @param segment The segment to read from
+     * @param offset The byte offset inside the segment
+     * @return The value at the offset
+     */
+    public static char GetChar(MemorySegment segment, long offset) {
+        return (char) VH_CHAR.get(segment, offset);
+    }
+
+    /**
+     * Writes 2 bytes to the given byte offset of the segment.
+     * @param segment The segment to write to
+     * @param offset The byte offset inside the segment
+     * @param value The value to write into the segment
+     */
+    public static void SetChar(MemorySegment segment, long offset, char value) {
+        VH_CHAR.set(segment, offset, value);
+    }
+
+    /**
+     * Reads an element of a char array stored in the segment.
+     * @param segment The segment to read from
+     * @param index The index of the element
+     * @return The value of the element
+     */
+    public static char GetCharAtIndex(MemorySegment segment, long index) {
+        return (char) VH_CHAR.get(segment, index << 1);
+    }
+
+    /**
+     * Writes an element of a char array stored in the segment.
+     * @param segment The segment to write to
+     * @param index The index of the element
+     * @param value The value to write into the element
+     */
+    public static void SetCharAtIndex(MemorySegment segment, long index, char value) {
+        VH_CHAR.set(segment, index << 1, value);
+    }
+
+    /**
+     * Reads 4 bytes from the given byte offset of the segment.
+     * @param segment The segment to read from
+     * @param offset The byte offset inside the segment
+     * @return The value at the offset
+     */
+    public static int GetInt(MemorySegment segment, long offset) {
+        return (int) VH_INT.get(segment, offset);
+    }
+
+    /**
+     * Writes 4 bytes to the given byte offset of the segment.
+     * @param segment The segment to write to
+     * @param offset The byte offset inside the segment
+     * @param value The value to write into the segment
+     */
+    public static void SetInt(MemorySegment segment, long offset, int value) {
+        VH_INT.set(segment, offset, value);
+    }
+
+    /**
+     * Reads an element of a int array stored in the segment.
+     * @param segment The segment to read from
+     * @param index The index of the element
+     * @return The value of the element
+     */
+    public static int GetIntAtIndex(MemorySegment segment, long index) {
+        return (int) VH_INT.get(segment, index << 2);
+    }
+
+    /**
+     * Writes an element of a int array stored in the segment.
+     * @param segment The segment to write to
+     * @param index The index of the element
+     * @param value The value to write into the element
+     */
+    public static void SetIntAtIndex(MemorySegment segment, long index, int value) {
+        VH_INT.set(segment, index << 2, value);
+    }
+
+    /**
+     * Reads 8 bytes from the given byte offset of the segment.
+     * @param segment The segment to read from
+     * @param offset The byte offset inside the segment
+     * @return The value at the offset
+     */
+    public static long GetLong(MemorySegment segment, long offset) {
+        return (long) VH_LONG.get(segment, offset);
+    }
+
+    /**
+     * Writes 8 bytes to the given byte offset of the segment.
+     * @param segment The segment to write to
+     * @param offset The byte offset inside the segment
+     * @param value The value to write into the segment
+     */
+    public static void SetLong(MemorySegment segment, long offset, long value) {
+        VH_LONG.set(segment, offset, value);
+    }
+
+    /**
+     * Reads an element of a long array stored in the segment.
+     * @param segment The segment to read from
+     * @param index The index of the element
+     * @return The value of the element
+     */
+    public static long GetLongAtIndex(MemorySegment segment, long index) {
+        return (long) VH_LONG.get(segment, index << 3);
+    }
+
+    /**
+     * Writes an element of a long array stored in the segment.
+     * @param segment The segment to write to
+     * @param index The index of the element
+     * @param value The value to write into the element
+     */
+    public static void SetLongAtIndex(MemorySegment segment, long index, long value) {
+        VH_LONG.set(segment, index << 3, value);
+    }
+
+    /**
+     * Reads 4 bytes from the given byte offset of the segment.
+     * @param segment The segment to read from
+     * @param offset The byte offset inside the segment
+     * @return The value at the offset
+     */
+    public static float GetFloat(MemorySegment segment, long offset) {
+        return (float) VH_FLOAT.get(segment, offset);
+    }
+
+    /**
+     * Writes 4 bytes to the given byte offset of the segment.
+     * @param segment The segment to write to
+     * @param offset The byte offset inside the segment
+     * @param value The value to write into the segment
+     */
+    public static void SetFloat(MemorySegment segment, long offset, float value) {
+        VH_FLOAT.set(segment, offset, value);
+    }
+
+    /**
+     * Reads an element of a float array stored in the segment.
+     * @param segment The segment to read from
+     * @param index The index of the element
+     * @return The value of the element
+     */
+    public static float GetFloatAtIndex(MemorySegment segment, long index) {
+        return (float) VH_FLOAT.get(segment, index << 2);
+    }
+
+    /**
+     * Writes an element of a float array stored in the segment.
+     * @param segment The segment to write to
+     * @param index The index of the element
+     * @param value The value to write into the element
+     */
+    public static void SetFloatAtIndex(MemorySegment segment, long index, float value) {
+        VH_FLOAT.set(segment, index << 2, value);
+    }
+
+    /**
+     * Reads 8 bytes from the given byte offset of the segment.
+     * @param segment The segment to read from
+     * @param offset The byte offset inside the segment
+     * @return The value at the offset
+     */
+    public static double GetDouble(MemorySegment segment, long offset) {
+        return (double) VH_DOUBLE.get(segment, offset);
+    }
+
+    /**
+     * Writes 8 bytes to the given byte offset of the segment.
+     * @param segment The segment to write to
+     * @param offset The byte offset inside the segment
+     * @param value The value to write into the segment
+     */
+    public static void SetDouble(MemorySegment segment, long offset, double value) {
+        VH_DOUBLE.set(segment, offset, value);
+    }
+
+    /**
+     * Reads an element of a double array stored in the segment.
+     * @param segment The segment to read from
+     * @param index The index of the element
+     * @return The value of the element
+     */
+    public static double GetDoubleAtIndex(MemorySegment segment, long index) {
+        return (double) VH_DOUBLE.get(segment, index << 3);
+    }
+
+    /**
+     * Writes an element of a double array stored in the segment.
+     * @param segment The segment to write to
+     * @param index The index of the element
+     * @param value The value to write into the element
+     */
+    public static void SetDoubleAtIndex(MemorySegment segment, long index, double value) {
+        VH_DOUBLE.set(segment, index << 3, value);
+    }
+
+    /**
+     * Reads a pointer from the given byte offset of the segment.
+     * @param segment The segment to read from
+     * @param offset The byte offset inside the segment
+     * @return The value at the offset
+     */
+    public static MemoryAddress GetPointer(MemorySegment segment, long offset) {
+        return MemoryAddress.ofLong((long) VH_LONG.get(segment, offset));
+    }
+
+    /**
+     * Writes a pointer to the given byte offset of the segment.
+     * @param segment The segment to write to
+     * @param offset The byte offset inside the segment
+     * @param value The value to write into the segment
+     */
+    public static void SetPointer(MemorySegment segment, long offset, MemoryAddress value) {
+        VH_LONG.set(segment, offset, value.toRawLongValue());
+    }
+
+    /**
+     * Reads an element of a pointer array stored in the segment.
+     * @param segment The segment to read from
+     * @param index The index of the element
+     * @return The value of the element
+     */
+    public static MemoryAddress GetPointerAtIndex(MemorySegment segment, long index) {
+        return MemoryAddress.ofLong((long) VH_LONG.get(segment, index << 3));
+    }
+
+    /**
+     * Writes an element of a pointer array stored in the segment.
+     * @param segment The segment to write to
+     * @param index The index of the element
+     * @param value The value to write into the element
+     */
+    public static void SetPointerAtIndex(MemorySegment segment, long index, MemoryAddress value) {
+        VH_LONG.set(segment, index << 3, value.toRawLongValue());
+    }
+
+    /**
+     * Reads a single byte from the given native address.
+     * @param address The address to read from
+     * @return The value at the address
+     */
+    public static byte GetByte(long address) {
+        return (byte) VH_BYTE.get(Native.SEGMENT, address);
+    }
+
+    /**
+     * Writes a single byte to the given native address.
+     * @param address The address to write to
+     * @param value The value to write to the address
+     */
+    public static void SetByte(long address, byte value) {
+        VH_BYTE.set(Native.SEGMENT, address, value);
+    }
+
+    /**
+     * Reads 2 bytes from the given native address.
+     * @param address The address to read from
+     * @return The value at the address
+     */
+    public static short GetShort(long address) {
+        return (short) VH_SHORT.get(Native.SEGMENT, address);
+    }
+
+    /**
+     * Writes 2 bytes to the given native address.
+     * @param address The address to write to
+     * @param value The value to write to the address
+     */
+    public static void SetShort(long address, short value) {
+        VH_SHORT.set(Native.SEGMENT, address, value);
+    }
+
+    /**
+     * Reads 4 bytes from the given native address.
+     * @param address The address to read from
+     * @return The value at the address
+     */
+    public static int GetInt(long address) {
+        return (int) VH_INT.get(Native.SEGMENT, address);
+    }
+
+    /**
+     * Writes 4 bytes to the given native address.
+     * @param address The address to write to
+     * @param value The value to write to the address
+     */
+    public static void SetInt(long address, int value) {
+        VH_INT.set(Native.SEGMENT, address, value);
+    }
+
+    /**
+     * Reads 8 bytes from the given native address.
+     * @param address The address to read from
+     * @return The value at the address
+     */
+    public static long GetLong(long address) {
+        return (long) VH_LONG.get(Native.SEGMENT, address);
+    }
+
+    /**
+     * Writes 8 bytes to the given native address.
+     * @param address The address to write to
+     * @param value The value to write to the address
+     */
+    public static void SetLong(long address, long value) {
+        VH_LONG.set(Native.SEGMENT, address, value);
+    }
+
+    /**
+     * Reads a pointer from the given native address. Use {@link #GetLong(long)} to get the raw value without
+     * creating a {@link MemoryAddress}.
+     * @param address The address to read from
+     * @return The value at the address
+     */
+    public static MemoryAddress GetPointer(long address) {
+        return MemoryAddress.ofLong((long) VH_LONG.get(Native.SEGMENT, address));
+    }
+
+    /**
+     * Writes a pointer to the given native address.
+     * @param address The address to write to
+     * @param value The raw pointer value to write to the address
+     */
+    public static void SetPointer(long address, long value) {
+        VH_LONG.set(Native.SEGMENT, address, value);
+    }
+
+    /**
+     * Reads a char from the given native address.
+     * @param address The address to read from
+     * @return The value at the address
+     */
+    public static char GetChar(long address) {
+        return (char) VH_CHAR.get(Native.SEGMENT, address);
+    }
+
+    /**
+     * Writes a char to the given native address.
+     * @param address The address to write to
+     * @param value The value to write to the address
+     */
+    public static void SetChar(long address, char value) {
+        VH_CHAR.set(Native.SEGMENT, address, value);
+    }
+
+    /**
+     * Reads a float from the given native address.
+     * @param address The address to read from
+     * @return The value at the address
+     */
+    public static float GetFloat(long address) {
+        return (float) VH_FLOAT.get(Native.SEGMENT, address);
+    }
+
+    /**
+     * Writes a float to the given native address.
+     * @param address The address to write to
+     * @param value The value to write to the address
+     */
+    public static void SetFloat(long address, float value) {
+        VH_FLOAT.set(Native.SEGMENT, address, value);
+    }
+
+    /**
+     * Reads a double from the given native address.
+     * @param address The address to read from
+     * @return The value at the address
+     */
+    public static double GetDouble(long address) {
+        return (double) VH_DOUBLE.get(Native.SEGMENT, address);
+    }
+
+    /**
+     * Writes a double to the given native address.
+     * @param address The address to write to
+     * @param value The value to write to the address
+     */
+    public static void SetDouble(long address, double value) {
+        VH_DOUBLE.set(Native.SEGMENT, address, value);
+    }
+
+    /**
+     * Fills a block of native memory with the given value.
+     * @param address The start of the block
+     * @param size The size of the block in bytes
+     * @param value The value to write into every byte of the block
+     */
+    public static void Fill(long address, long size, byte value) {
+        Native.SEGMENT.asSlice(address, size).fill(value);
+    }
+
+    /**
+     * Copies a range of a byte array into a segment.
+     * @param src The array to copy from
+     * @param srcIndex The index of the first element to copy
+     * @param dst The segment to copy into
+     * @param dstOffset The byte offset inside the segment to copy to
+     * @param count The amount of elements to copy
+     */
+    public static void Copy(byte[] src, int srcIndex, MemorySegment dst, long dstOffset, int count) {
+        dst.asSlice(dstOffset, (long) count).copyFrom(MemorySegment.ofArray(src).asSlice((long) srcIndex, (long) count));
+    }
+
+    /**
+     * Copies a range of a segment into a byte array.
+     * @param src The segment to copy from
+     * @param srcOffset The byte offset inside the segment to copy from
+     * @param dst The array to copy into
+     * @param dstIndex The index of the first element to copy into
+     * @param count The amount of elements to copy
+     */
+    public static void Copy(MemorySegment src, long srcOffset, byte[] dst, int dstIndex, int count) {
+        MemorySegment.ofArray(dst).asSlice((long) dstIndex, (long) count).copyFrom(src.asSlice(srcOffset, (long) count));
+    }
+
+    /**
+     * Copies a range of a short array into a segment.
+     * @param src The array to copy from
+     * @param srcIndex The index of the first element to copy
+     * @param dst The segment to copy into
+     * @param dstOffset The byte offset inside the segment to copy to
+     * @param count The amount of elements to copy
+     */
+    public static void Copy(short[] src, int srcIndex, MemorySegment dst, long dstOffset, int count) {
+        dst.asSlice(dstOffset, count * 2L).copyFrom(MemorySegment.ofArray(src).asSlice((long) srcIndex * 2L, count * 2L));
+    }
+
+    /**
+     * Copies a range of a segment into a short array.
+     * @param src The segment to copy from
+     * @param srcOffset The byte offset inside the segment to copy from
+     * @param dst The array to copy into
+     * @param dstIndex The index of the first element to copy into
+     * @param count The amount of elements to copy
+     */
+    public static void Copy(MemorySegment src, long srcOffset, short[] dst, int dstIndex, int count) {
+        MemorySegment.ofArray(dst).asSlice((long) dstIndex * 2L, count * 2L).copyFrom(src.asSlice(srcOffset, count * 2L));
+    }
+
+    /**
+     * Copies a range of a char array into a segment.
+     * @param src The array to copy from
+     * @param srcIndex The index of the first element to copy
+     * @param dst The segment to copy into
+     * @param dstOffset The byte offset inside the segment to copy to
+     * @param count The amount of elements to copy
+     */
+    public static void Copy(char[] src, int srcIndex, MemorySegment dst, long dstOffset, int count) {
+        dst.asSlice(dstOffset, count * 2L).copyFrom(MemorySegment.ofArray(src).asSlice((long) srcIndex * 2L, count * 2L));
+    }
+
+    /**
+     * Copies a range of a segment into a char array.
+     * @param src The segment to copy from
+     * @param srcOffset The byte offset inside the segment to copy from
+     * @param dst The array to copy into
+     * @param dstIndex The index of the first element to copy into
+     * @param count The amount of elements to copy
+     */
+    public static void Copy(MemorySegment src, long srcOffset, char[] dst, int dstIndex, int count) {
+        MemorySegment.ofArray(dst).asSlice((long) dstIndex * 2L, count * 2L).copyFrom(src.asSlice(srcOffset, count * 2L));
+    }
+
+    /**
+     * Copies a range of a int array into a segment.
+     * @param src The array to copy from
+     * @param srcIndex The index of the first element to copy
+     * @param dst The segment to copy into
+     * @param dstOffset The byte offset inside the segment to copy to
+     * @param count The amount of elements to copy
+     */
+    public static void Copy(int[] src, int srcIndex, MemorySegment dst, long dstOffset, int count) {
+        dst.asSlice(dstOffset, count * 4L).copyFrom(MemorySegment.ofArray(src).asSlice((long) srcIndex * 4L, count * 4L));
+    }
+
+    /**
+     * Copies a range of a segment into a int array.
+     * @param src The segment to copy from
+     * @param srcOffset The byte offset inside the segment to copy from
+     * @param dst The array to copy into
+     * @param dstIndex The index of the first element to copy into
+     * @param count The amount of elements to copy
+     */
+    public static void Copy(MemorySegment src, long srcOffset, int[] dst, int dstIndex, int count) {
+        MemorySegment.ofArray(dst).asSlice((long) dstIndex * 4L, count * 4L).copyFrom(src.asSlice(srcOffset, count * 4L));
+    }
+
+    /**
+     * Copies a range of a long array into a segment.
+     * @param src The array to copy from
+     * @param srcIndex The index of the first element to copy
+     * @param dst The segment to copy into
+     * @param dstOffset The byte offset inside the segment to copy to
+     * @param count The amount of elements to copy
+     */
+    public static void Copy(long[] src, int srcIndex, MemorySegment dst, long dstOffset, int count) {
+        dst.asSlice(dstOffset, count * 8L).copyFrom(MemorySegment.ofArray(src).asSlice((long) srcIndex * 8L, count * 8L));
+    }
+
+    /**
+     * Copies a range of a segment into a long array.
+     * @param src The segment to copy from
+     * @param srcOffset The byte offset inside the segment to copy from
+     * @param dst The array to copy into
+     * @param dstIndex The index of the first element to copy into
+     * @param count The amount of elements to copy
+     */
+    public static void Copy(MemorySegment src, long srcOffset, long[] dst, int dstIndex, int count) {
+        MemorySegment.ofArray(dst).asSlice((long) dstIndex * 8L, count * 8L).copyFrom(src.asSlice(srcOffset, count * 8L));
+    }
+
+    /**
+     * Copies a range of a float array into a segment.
+     * @param src The array to copy from
+     * @param srcIndex The index of the first element to copy
+     * @param dst The segment to copy into
+     * @param dstOffset The byte offset inside the segment to copy to
+     * @param count The amount of elements to copy
+     */
+    public static void Copy(float[] src, int srcIndex, MemorySegment dst, long dstOffset, int count) {
+        dst.asSlice(dstOffset, count * 4L).copyFrom(MemorySegment.ofArray(src).asSlice((long) srcIndex * 4L, count * 4L));
+    }
+
+    /**
+     * Copies a range of a segment into a float array.
+     * @param src The segment to copy from
+     * @param srcOffset The byte offset inside the segment to copy from
+     * @param dst The array to copy into
+     * @param dstIndex The index of the first element to copy into
+     * @param count The amount of elements to copy
+     */
+    public static void Copy(MemorySegment src, long srcOffset, float[] dst, int dstIndex, int count) {
+        MemorySegment.ofArray(dst).asSlice((long) dstIndex * 4L, count * 4L).copyFrom(src.asSlice(srcOffset, count * 4L));
+    }
+
+    /**
+     * Copies a range of a double array into a segment.
+     * @param src The array to copy from
+     * @param srcIndex The index of the first element to copy
+     * @param dst The segment to copy into
+     * @param dstOffset The byte offset inside the segment to copy to
+     * @param count The amount of elements to copy
+     */
+    public static void Copy(double[] src, int srcIndex, MemorySegment dst, long dstOffset, int count) {
+        dst.asSlice(dstOffset, count * 8L).copyFrom(MemorySegment.ofArray(src).asSlice((long) srcIndex * 8L, count * 8L));
+    }
+
+    /**
+     * Copies a range of a segment into a double array.
+     * @param src The segment to copy from
+     * @param srcOffset The byte offset inside the segment to copy from
+     * @param dst The array to copy into
+     * @param dstIndex The index of the first element to copy into
+     * @param count The amount of elements to copy
+     */
+    public static void Copy(MemorySegment src, long srcOffset, double[] dst, int dstIndex, int count) {
+        MemorySegment.ofArray(dst).asSlice((long) dstIndex * 8L, count * 8L).copyFrom(src.asSlice(srcOffset, count * 8L));
+    }
+
+    /**
+     * Fills a segment with copies of a short. The size of the segment must be a multiple of 2.
+     * @param segment The segment to fill
+     * @param value The value to write into every element of the segment
+     */
+    public static void FillShort(MemorySegment segment, short value) {
+        var size = segment.byteSize();
+        if (size % 2 != 0) throw new IllegalArgumentException("Segment size " + size + " is not a multiple of 2");
+        if (size == 0) return;
+        VH_SHORT.set(segment, 0, value);
+        fillDoubling(segment, 2);
+    }
+
+    /**
+     * Fills a segment with copies of a char. The size of the segment must be a multiple of 2.
+     * @param segment The segment to fill
+     * @param value The value to write into every element of the segment
+     */
+    public static void FillChar(MemorySegment segment, char value) {
+        var size = segment.byteSize();
+        if (size % 2 != 0) throw new IllegalArgumentException("Segment size " + size + " is not a multiple of 2");
+        if (size == 0) return;
+        VH_CHAR.set(segment, 0, value);
+        fillDoubling(segment, 2);
+    }
+
+    /**
+     * Fills a segment with copies of a int. The size of the segment must be a multiple of 4.
+     * @param segment The segment to fill
+     * @param value The value to write into every element of the segment
+     */
+    public static void FillInt(MemorySegment segment, int value) {
+        var size = segment.byteSize();
+        if (size % 4 != 0) throw new IllegalArgumentException("Segment size " + size + " is not a multiple of 4");
+        if (size == 0) return;
+        VH_INT.set(segment, 0, value);
+        fillDoubling(segment, 4);
+    }
+
+    /**
+     * Fills a segment with copies of a long. The size of the segment must be a multiple of 8.
+     * @param segment The segment to fill
+     * @param value The value to write into every element of the segment
+     */
+    public static void FillLong(MemorySegment segment, long value) {
+        var size = segment.byteSize();
+        if (size % 8 != 0) throw new IllegalArgumentException("Segment size " + size + " is not a multiple of 8");
+        if (size == 0) return;
+        VH_LONG.set(segment, 0, value);
+        fillDoubling(segment, 8);
+    }
+
+    /**
+     * Fills a segment with copies of a float. The size of the segment must be a multiple of 4.
+     * @param segment The segment to fill
+     * @param value The value to write into every element of the segment
+     */
+    public static void FillFloat(MemorySegment segment, float value) {
+        var size = segment.byteSize();
+        if (size % 4 != 0) throw new IllegalArgumentException("Segment size " + size + " is not a multiple of 4");
+        if (size == 0) return;
+        VH_FLOAT.set(segment, 0, value);
+        fillDoubling(segment, 4);
+    }
+
+    /**
+     * Fills a segment with copies of a double. The size of the segment must be a multiple of 8.
+     * @param segment The segment to fill
+     * @param value The value to write into every element of the segment
+     */
+    public static void FillDouble(MemorySegment segment, double value) {
+        var size = segment.byteSize();
+        if (size % 8 != 0) throw new IllegalArgumentException("Segment size " + size + " is not a multiple of 8");
+        if (size == 0) return;
+        VH_DOUBLE.set(segment, 0, value);
+        fillDoubling(segment, 8);
+    }
+
+    /**
+     * Replicates the first <code>filled</code> bytes of a segment over the rest of it, doubling the copied range in
+     * every step, so filling only takes a logarithmic amount of bulk copies.
+     */
+    private static void fillDoubling(MemorySegment segment, long filled) {
+        var size = segment.byteSize();
+        while (filled < size) {
+            var chunk = Math.min(filled, size - filled);
+            segment.asSlice(filled, chunk).copyFrom(segment.asSlice(0, chunk));
+            filled += chunk;
+        }
+    }
+
+    /**
+     * Finds the first byte where two segments differ.
+     * @param a The first segment
+     * @param b The second segment
+     * @return The offset of the first differing byte, or -1 if the segments have the same size and contents
+     */
+    public static long Mismatch(MemorySegment a, MemorySegment b) {
+        return a.mismatch(b);
+    }
+
+    /**
+     * Checks whether two segments have the same size and contents.
+     * @param a The first segment
+     * @param b The second segment
+     * @return True if the segments are equal byte by byte
+     */
+    public static boolean Equals(MemorySegment a, MemorySegment b) {
+        return a.mismatch(b) == -1;
+    }
+
+    /**
+     * Reads a short field out of an array of structs (or any other strided layout) into a short array.
+     * @param src The segment to read from
+     * @param offset The byte offset of the first element inside the segment
+     * @param stride The distance between two elements in bytes
+     * @param dst The array to write into
+     * @param dstIndex The index of the first element to write
+     * @param count The amount of elements to read
+     */
+    public static void Gather(MemorySegment src, long offset, long stride, short[] dst, int dstIndex, int count) {
+        for (int i = 0; i < count; i++) {
+            dst[dstIndex + i] = (short) VH_SHORT.get(src, offset + i * stride);
+        }
+    }
+
+    /**
+     * Writes a range of a short array into a field of an array of structs (or any other strided layout).
+     * @param src The array to read from
+     * @param srcIndex The index of the first element to read
+     * @param dst The segment to write into
+     * @param offset The byte offset of the first element inside the segment
+     * @param stride The distance between two elements in bytes
+     * @param count The amount of elements to write
+     */
+    public static void Scatter(short[] src, int srcIndex, MemorySegment dst, long offset, long stride, int count) {
+        for (int i = 0; i < count; i++) {
+            VH_SHORT.set(dst, offset + i * stride, src[srcIndex + i]);
+        }
+    }
+
+    /**
+     * Reads a int field out of an array of structs (or any other strided layout) into a int array.
+     * @param src The segment to read from
+     * @param offset The byte offset of the first element inside the segment
+     * @param stride The distance between two elements in bytes
+     * @param dst The array to write into
+     * @param dstIndex The index of the first element to write
+     * @param count The amount of elements to read
+     */
+    public static void Gather(MemorySegment src, long offset, long stride, int[] dst, int dstIndex, int count) {
+        for (int i = 0; i < count; i++) {
+            dst[dstIndex + i] = (int) VH_INT.get(src, offset + i * stride);
+        }
+    }
+
+    /**
+     * Writes a range of a int array into a field of an array of structs (or any other strided layout).
+     * @param src The array to read from
+     * @param srcIndex The index of the first element to read
+     * @param dst The segment to write into
+     * @param offset The byte offset of the first element inside the segment
+     * @param stride The distance between two elements in bytes
+     * @param count The amount of elements to write
+     */
+    public static void Scatter(int[] src, int srcIndex, MemorySegment dst, long offset, long stride, int count) {
+        for (int i = 0; i < count; i++) {
+            VH_INT.set(dst, offset + i * stride, src[srcIndex + i]);
+        }
+    }
+
+    /**
+     * Reads a long field out of an array of structs (or any other strided layout) into a long array.
+     * @param src The segment to read from
+     * @param offset The byte offset of the first element inside the segment
+     * @param stride The distance between two elements in bytes
+     * @param dst The array to write into
+     * @param dstIndex The index of the first element to write
+     * @param count The amount of elements to read
+     */
+    public static void Gather(MemorySegment src, long offset, long stride, long[] dst, int dstIndex, int count) {
+        for (int i = 0; i < count; i++) {
+            dst[dstIndex + i] = (long) VH_LONG.get(src, offset + i * stride);
+        }
+    }
+
+    /**
+     * Writes a range of a long array into a field of an array of structs (or any other strided layout).
+     * @param src The array to read from
+     * @param srcIndex The index of the first element to read
+     * @param dst The segment to write into
+     * @param offset The byte offset of the first element inside the segment
+     * @param stride The distance between two elements in bytes
+     * @param count The amount of elements to write
+     */
+    public static void Scatter(long[] src, int srcIndex, MemorySegment dst, long offset, long stride, int count) {
+        for (int i = 0; i < count; i++) {
+            VH_LONG.set(dst, offset + i * stride, src[srcIndex + i]);
+        }
+    }
+
+    /**
+     * Reads a float field out of an array of structs (or any other strided layout) into a float array.
+     * @param src The segment to read from
+     * @param offset The byte offset of the first element inside the segment
+     * @param stride The distance between two elements in bytes
+     * @param dst The array to write into
+     * @param dstIndex The index of the first element to write
+     * @param count The amount of elements to read
+     */
+    public static void Gather(MemorySegment src, long offset, long stride, float[] dst, int dstIndex, int count) {
+        for (int i = 0; i < count; i++) {
+            dst[dstIndex + i] = (float) VH_FLOAT.get(src, offset + i * stride);
+        }
+    }
+
+    /**
+     * Writes a range of a float array into a field of an array of structs (or any other strided layout).
+     * @param src The array to read from
+     * @param srcIndex The index of the first element to read
+     * @param dst The segment to write into
+     * @param offset The byte offset of the first element inside the segment
+     * @param stride The distance between two elements in bytes
+     * @param count The amount of elements to write
+     */
+    public static void Scatter(float[] src, int srcIndex, MemorySegment dst, long offset, long stride, int count) {
+        for (int i = 0; i < count; i++) {
+            VH_FLOAT.set(dst, offset + i * stride, src[srcIndex + i]);
+        }
+    }
+
+    /**
+     * Reads a double field out of an array of structs (or any other strided layout) into a double array.
+     * @param src The segment to read from
+     * @param offset The byte offset of the first element inside the segment
+     * @param stride The distance between two elements in bytes
+     * @param dst The array to write into
+     * @param dstIndex The index of the first element to write
+     * @param count The amount of elements to read
+     */
+    public static void Gather(MemorySegment src, long offset, long stride, double[] dst, int dstIndex, int count) {
+        for (int i = 0; i < count; i++) {
+            dst[dstIndex + i] = (double) VH_DOUBLE.get(src, offset + i * stride);
+        }
+    }
+
+    /**
+     * Writes a range of a double array into a field of an array of structs (or any other strided layout).
+     * @param src The array to read from
+     * @param srcIndex The index of the first element to read
+     * @param dst The segment to write into
+     * @param offset The byte offset of the first element inside the segment
+     * @param stride The distance between two elements in bytes
+     * @param count The amount of elements to write
+     */
+    public static void Scatter(double[] src, int srcIndex, MemorySegment dst, long offset, long stride, int count) {
+        for (int i = 0; i < count; i++) {
+            VH_DOUBLE.set(dst, offset + i * stride, src[srcIndex + i]);
+        }
+    }
+
+    /**
+     * Writes a java string into a segment as a null terminated UTF-16LE (wide) string.
+     * @param str The string to write
+     * @param segment The segment to write into
+     * @param offset The byte offset inside the segment to write the string to
+     * @return The byte offset right after the null terminator
+     */
+    public static long WriteWString(String str, MemorySegment segment, long offset) {
+        var length = str.length();
+        for (int i = 0; i < length; i++) {
+            VH_CHAR.set(segment, offset, str.charAt(i));
+            offset += 2;
+        }
+        VH_CHAR.set(segment, offset, (char) 0);
+        return offset + 2;
+    }
+
+    /**
+     * Reads a null terminated UTF-16LE (wide) string from a segment. Reading stops at the end of the segment if there
+     * is no null terminator.
+     * @param segment The segment to read from
+     * @return The decoded java string
+     */
+    public static String FromWString(MemorySegment segment) {
+        return FromWString(segment, (int) Math.min(segment.byteSize() / 2, Integer.MAX_VALUE));
+    }
+
+    /**
+     * Reads a wide string from a fixed size buffer, such as a <code>WCHAR[N]</code> field of a struct. Reading stops
+     * at the first null character, or after <code>maxChars</code> characters.
+     * @param segment The segment to read from
+     * @param maxChars The size of the buffer in characters
+     * @return The decoded java string
+     */
+    public static String FromWString(MemorySegment segment, int maxChars) {
+        int length = 0;
+        while (length < maxChars && (char) VH_CHAR.get(segment, length * 2L) != 0) {
+            length++;
+        }
+        var chars = new char[length];
+        Copy(segment, 0, chars, 0, length);
+        return new String(chars);
+    }
+
+    /**
+     * Reads a null terminated UTF-16LE (wide) string from the given native address.
+     * @param address The address of the string
+     * @return The decoded java string
+     */
+    public static String FromWString(long address) {
+        return FromWString(address, Integer.MAX_VALUE);
+    }
+
+    /**
+     * Same as {@link #FromWString(MemorySegment, int)}, but for raw addresses.
+     * @param address The address of the buffer
+     * @param maxChars The size of the buffer in characters
+     * @return The decoded java string
+     */
+    public static String FromWString(long address, int maxChars) {
+        int length = 0;
+        while (length < maxChars && GetChar(address + length * 2L) != 0) {
+            length++;
+        }
+        return FromWString(Native.SEGMENT.asSlice(address, length * 2L), length);
+    }
+
     /**
      * Releases a previously allocated memory block.
      * @param segment The segment to release
      * @throws RuntimeException When a block is freed multiple times, or when you try to free a block not allocated by MemoryUtil.
      */
     public static void Free(MemorySegment segment) {
-        if (instance.scopes.containsKey(segment)) {
-            instance.scopes.remove(segment).close();
-        } else {
+        Free(segment.address().toRawLongValue());
+    }
+
+    /**
+     * Releases a previously allocated memory block by its address. Segments are not tied to a scope of their own
+     * outside of {@link MemoryChecks checked mode}, so accessing a segment after freeing it is not detected, and
+     * touches freed memory. In checked mode, every segment gets a scope that is closed here, and a later access fails
+     * with an {@link IllegalStateException}.
+     * @param address The address of the block to release
+     * @throws RuntimeException When a block is freed multiple times, or when you try to free a block not allocated by MemoryUtil.
+     */
+    public static void Free(long address) {
+        if (MemoryChecks.CHECKED) {
+            MemoryChecks.freed(address);
+            var scope = instance.checkedScopes.remove(address);
+            if (scope != null) scope.close();
+        }
+        if (MemoryProfiler.ENABLED) MemoryProfiler.freed(address);
+        var size = instance.registry.release(address);
+        if (size < 0) {
             throw new RuntimeException("Tried to free already freed or unmanaged segment!");
         }
+        MemoryEvents.free(MemoryEvents.MEMORY_UTIL, address, size);
     }
 
     public static MemorySegment Allocate(long bytesSize, long bytesAlignment) {
@@ -152,6 +1188,13 @@ public class MemoryUtil implements MemoryAllocator {
         return instance.mallocAligned(layout);
     }
 
+    /**
+     * Same as malloc, but skips zeroing the memory. See {@link #mallocUninitialized}.
+     */
+    public static MemorySegment MallocUninitialized(long size, long alignment) {
+        return instance.mallocUninitialized(size, alignment);
+    }
+
     public static MemorySegment Calloc(long size) {
         return instance.calloc(size);
     }
@@ -224,6 +1267,14 @@ public class MemoryUtil implements MemoryAllocator {
         return instance.toCString(str);
     }
 
+    public static MemorySegment ToWString(String str) {
+        return instance.toWString(str);
+    }
+
+    public static MemorySegment ToWStringArray(String... strings) {
+        return instance.toWStringArray(strings);
+    }
+
     public static MemorySegment Allocate(ValueLayout layout, byte value) {
         return instance.allocate(layout, value);
     }
@@ -302,10 +1353,87 @@ public class MemoryUtil implements MemoryAllocator {
 
     @Override
     public MemorySegment mallocAligned(long size, long alignment) {
-        var scope = ResourceScope.newConfinedScope();
-        var segment = MemorySegment.allocateNative(size, alignment, scope);
-        scopes.put(segment, scope);
-        return segment;
+        return segment(nmallocAligned(size, alignment), size);
+    }
+
+    @Override
+    public long nmallocAligned(long size, long alignment) {
+        return allocate(size, alignment, true);
+    }
+
+    /**
+     * Blocks from {@link #mallocAligned(long, long)} are already zeroed, so this doesn't fill them again.
+     */
+    @Override
+    public MemorySegment callocAligned(long size, long alignment) {
+        return mallocAligned(size, alignment);
+    }
+
+    @Override
+    public long ncallocAligned(long size, long alignment) {
+        return nmallocAligned(size, alignment);
+    }
+
+    @Override
+    public MemorySegment mallocUninitialized(long size, long alignment) {
+        return segment(nmallocUninitialized(size, alignment), size);
+    }
+
+    /**
+     * Wraps a new block in the global scope, or in checked mode, in a shared scope that {@link #Free(long)} closes.
+     */
+    private MemorySegment segment(long address, long size) {
+        if (!MemoryChecks.CHECKED) {
+            return MemoryAddress.ofLong(address).asSegment(size, ResourceScope.globalScope());
+        }
+        var scope = ResourceScope.newSharedScope();
+        checkedScopes.put(address, scope);
+        return MemoryAddress.ofLong(address).asSegment(size, scope);
+    }
+
+    @Override
+    public long nmallocUninitialized(long size, long alignment) {
+        return allocate(size, alignment, false);
+    }
+
+    private long allocate(long size, long alignment, boolean zero) {
+        if (size < 0) throw new IllegalArgumentException("Tried to allocate a negative amount of bytes: " + size);
+        if (alignment <= 0) throw new IllegalArgumentException("Tried to allocate with non-positive alignment " + alignment);
+        //Over-allocate when malloc itself can't guarantee the alignment, and remember the original pointer for free
+        var padding = alignment > MALLOC_ALIGNMENT ? alignment - 1 : 0;
+        //Native memory used to be handed out zeroed by MemorySegment.allocateNative, so malloc keeps doing that.
+        //calloc is used for it, which lets the C runtime skip the memset for memory fresh from the OS.
+        var total = Math.max(size + padding, 1);
+        var account = MemoryBudget.charge(size);
+        long base;
+        try {
+            base = zero ? NativeHeap.calloc(total) : NativeHeap.malloc(total);
+        } catch (OutOfMemoryError e) {
+            if (account != null) account.release(size);
+            throw e;
+        }
+        var misalignment = base % alignment;
+        var address = misalignment == 0 ? base : base + alignment - misalignment;
+        registry.register(address, base, size, account);
+        if (MemoryChecks.CHECKED) MemoryChecks.allocated(address);
+        if (MemoryProfiler.ENABLED) MemoryProfiler.allocated(MemoryEvents.MEMORY_UTIL, address, size);
+        MemoryEvents.allocation(MemoryEvents.MEMORY_UTIL, address, size, alignment);
+        return address;
+    }
+
+    @Override
+    public long nmalloc(long size) {
+        return nmallocAligned(size, 1);
+    }
+
+    @Override
+    public void free(MemorySegment segment) {
+        Free(segment);
+    }
+
+    @Override
+    public void nfree(long address, long size) {
+        Free(address);
     }
 
     @Override
@@ -313,4 +1441,10 @@ public class MemoryUtil implements MemoryAllocator {
         return mallocAligned(size, 1);
     }
 
+    /**
+     * Lazily initialized, as retrieving the global native segment is a restricted operation.
+     */
+    private static class Native {
+        static final MemorySegment SEGMENT = MemorySegment.globalNativeSegment();
+    }
 }
@@ -0,0 +1,83 @@
+/*
+ * Copyright (c) 2021 FalsePattern
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.falsepattern.jwin32.memory;
+
+/**
+ * A multi producer, single consumer {@link NativeRingBuffer}. Any thread may claim and publish records, while draining
+ * must only be done by one thread at a time.
+ * <p>
+ * Producers claim records by moving the producer counter with a compare-and-set, so batches may be published out of
+ * order. Every record slot therefore has an 8 byte header in front of it, which is set to the sequence number of the
+ * record plus one with a release store when it's published. The consumer stops at the first slot whose header doesn't
+ * match the record it expects.
+ */
+public final class MpscRingBuffer extends NativeRingBuffer {
+    private static final long SLOT_HEADER = 8;
+
+    /**
+     * @param allocator The allocator the buffer is taken from
+     * @param capacity The amount of records the buffer can hold, a power of two
+     * @param recordSize The size of a single record, in bytes
+     */
+    public MpscRingBuffer(MemoryAllocator allocator, int capacity, long recordSize) {
+        super(allocator, capacity, recordSize, SLOT_HEADER);
+    }
+
+    private long headerOffset(long sequence) {
+        return RECORDS_OFFSET + (sequence & mask) * stride;
+    }
+
+    @Override
+    public long tryClaim(int count) {
+        if (count <= 0 || count > capacity) throw new IllegalArgumentException("Invalid ring buffer claim count " + count);
+        while (true) {
+            var sequence = (long) MemoryUtil.VH_LONG.getVolatile(segment, PRODUCER_OFFSET);
+            var consumer = (long) MemoryUtil.VH_LONG.getAcquire(segment, CONSUMER_OFFSET);
+            if (sequence + count - consumer > capacity) return -1;
+            if (MemoryUtil.VH_LONG.compareAndSet(segment, PRODUCER_OFFSET, sequence, sequence + count)) return sequence;
+        }
+    }
+
+    @Override
+    public void publish(long sequence, int count) {
+        for (int i = 0; i < count; i++) {
+            var current = sequence + i;
+            MemoryUtil.VH_LONG.setRelease(segment, headerOffset(current), current + 1);
+        }
+    }
+
+    @Override
+    public int drain(RecordHandler handler, int limit) {
+        var consumer = (long) MemoryUtil.VH_LONG.getOpaque(segment, CONSUMER_OFFSET);
+        int count = 0;
+        while (count < limit) {
+            var sequence = consumer + count;
+            if ((long) MemoryUtil.VH_LONG.getAcquire(segment, headerOffset(sequence)) != sequence + 1) break;
+            handler.onRecord(recordAddress(sequence), sequence);
+            count++;
+        }
+        if (count > 0) {
+            MemoryUtil.VH_LONG.setRelease(segment, CONSUMER_OFFSET, consumer + count);
+        }
+        return count;
+    }
+}
@@ -0,0 +1,139 @@
+/*
+ * Copyright (c) 2021 FalsePattern
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.falsepattern.jwin32.memory;
+
+import jdk.incubator.foreign.Addressable;
+import jdk.incubator.foreign.CLinker;
+import jdk.incubator.foreign.MemoryAddress;
+
+import java.util.Objects;
+import java.util.function.LongConsumer;
+
+/**
+ * A growable off-heap list of pointers, such as a handle array for {@code WaitForMultipleObjects}. See
+ * {@link NativeList}. The raw variants of the methods work on plain {@code long} addresses, without creating a
+ * {@link MemoryAddress} for each element.
+ */
+public final class NativeAddressList extends NativeList {
+    private static final long POINTER_SIZE = CLinker.C_POINTER.byteSize();
+
+    /**
+     * @param allocator The allocator the list takes its memory from
+     */
+    public NativeAddressList(MemoryAllocator allocator) {
+        this(allocator, DEFAULT_CAPACITY);
+    }
+
+    /**
+     * @param allocator The allocator the list takes its memory from
+     * @param initialCapacity The amount of elements the list can hold before it has to grow
+     */
+    public NativeAddressList(MemoryAllocator allocator, int initialCapacity) {
+        super(allocator, POINTER_SIZE, initialCapacity);
+    }
+
+    /**
+     * @param value The pointer to append
+     */
+    public void add(Addressable value) {
+        addRaw(value.address().toRawLongValue());
+    }
+
+    /**
+     * @param value The raw pointer to append
+     */
+    public void addRaw(long value) {
+        var offset = reserve(1);
+        MemoryUtil.SetPointer(address + offset, value);
+        commit(1);
+    }
+
+    /**
+     * @param values The pointers to append
+     */
+    public void addAll(Addressable... values) {
+        var offset = reserve(values.length);
+        for (var value : values) {
+            MemoryUtil.SetPointer(address + offset, value.address().toRawLongValue());
+            offset += POINTER_SIZE;
+        }
+        commit(values.length);
+    }
+
+    /**
+     * @param values The array to append raw pointers from
+     * @param from The index of the first pointer to append
+     * @param count The amount of pointers to append
+     */
+    public void addAllRaw(long[] values, int from, int count) {
+        Objects.checkFromIndexSize(from, count, values.length);
+        var offset = reserve(count);
+        MemoryUtil.Copy(values, from, segment, offset, count);
+        commit(count);
+    }
+
+    /**
+     * @param other The list to append the pointers of
+     */
+    public void addAll(NativeAddressList other) {
+        var count = other.size;
+        var offset = reserve(count);
+        segment.asSlice(offset).copyFrom(other.segment.asSlice(0, count * POINTER_SIZE));
+        commit(count);
+    }
+
+    public MemoryAddress get(int index) {
+        return MemoryUtil.GetPointer(address + offsetOf(index));
+    }
+
+    public long getRaw(int index) {
+        return MemoryUtil.GetLong(address + offsetOf(index));
+    }
+
+    public void set(int index, Addressable value) {
+        setRaw(index, value.address().toRawLongValue());
+    }
+
+    public void setRaw(int index, long value) {
+        MemoryUtil.SetPointer(address + offsetOf(index), value);
+    }
+
+    /**
+     * Calls the action with every raw pointer in order, without creating {@link MemoryAddress}es.
+     * @param action The action to call
+     */
+    public void forEachRaw(LongConsumer action) {
+        var end = address + size * POINTER_SIZE;
+        for (var element = address; element < end; element += POINTER_SIZE) {
+            action.accept(MemoryUtil.GetLong(element));
+        }
+    }
+
+    /**
+     * @return A copy of the raw pointers on the heap
+     */
+    public long[] toRawArray() {
+        var result = new long[size];
+        MemoryUtil.Copy(segment, 0, result, 0, size);
+        return result;
+    }
+}
@@ -0,0 +1,118 @@
+/*
+ * Copyright (c) 2021 FalsePattern
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.falsepattern.jwin32.memory;
+
+import java.util.Objects;
+
+/**
+ * A growable off-heap list of float values. See {@link NativeList}.
+ */
+public final class NativeFloatList extends NativeList {
+    /**
+     * @param allocator The allocator the list takes its memory from
+     */
+    public NativeFloatList(MemoryAllocator allocator) {
+        this(allocator, DEFAULT_CAPACITY);
+    }
+
+    /**
+     * @param allocator The allocator the list takes its memory from
+     * @param initialCapacity The amount of elements the list can hold before it has to grow
+     */
+    public NativeFloatList(MemoryAllocator allocator, int initialCapacity) {
+        super(allocator, Float.BYTES, initialCapacity);
+    }
+
+    /**
+     * @param value The value to append
+     */
+    public void add(float value) {
+        var offset = reserve(1);
+        MemoryUtil.SetFloat(address + offset, value);
+        commit(1);
+    }
+
+    /**
+     * @param values The values to append
+     */
+    public void addAll(float... values) {
+        addAll(values, 0, values.length);
+    }
+
+    /**
+     * @param values The array to append values from
+     * @param from The index of the first value to append
+     * @param count The amount of values to append
+     */
+    public void addAll(float[] values, int from, int count) {
+        Objects.checkFromIndexSize(from, count, values.length);
+        var offset = reserve(count);
+        MemoryUtil.Copy(values, from, segment, offset, count);
+        commit(count);
+    }
+
+    /**
+     * @param other The list to append the values of
+     */
+    public void addAll(NativeFloatList other) {
+        var count = other.size;
+        var offset = reserve(count);
+        segment.asSlice(offset).copyFrom(other.segment.asSlice(0, count * Float.BYTES));
+        commit(count);
+    }
+
+    public float get(int index) {
+        return MemoryUtil.GetFloat(address + offsetOf(index));
+    }
+
+    public void set(int index, float value) {
+        MemoryUtil.SetFloat(address + offsetOf(index), value);
+    }
+
+    /**
+     * Calls the action with every value in order, without boxing them.
+     * @param action The action to call
+     */
+    public void forEach(FloatConsumer action) {
+        var end = address + size * (long) Float.BYTES;
+        for (var element = address; element < end; element += Float.BYTES) {
+            action.accept(MemoryUtil.GetFloat(element));
+        }
+    }
+
+    /**
+     * @return A copy of the values on the heap
+     */
+    public float[] toArray() {
+        var result = new float[size];
+        MemoryUtil.Copy(segment, 0, result, 0, size);
+        return result;
+    }
+
+    /**
+     * A consumer of primitive floats, as the JDK doesn't have one.
+     */
+    @FunctionalInterface
+    public interface FloatConsumer {
+        void accept(float value);
+    }
+}
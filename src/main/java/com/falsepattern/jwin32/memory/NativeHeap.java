@@ -0,0 +1,122 @@
+/*
+ * Copyright (c) 2021 FalsePattern
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.falsepattern.jwin32.memory;
+
+import jdk.incubator.foreign.CLinker;
+import jdk.incubator.foreign.FunctionDescriptor;
+import jdk.incubator.foreign.MemoryAddress;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodType;
+
+/**
+ * Direct access to the C runtime's malloc/calloc/free. Going through calloc instead of malloc + memset lets the C
+ * runtime skip the zeroing for memory that is fresh from the OS (and thus already zero).
+ * <p>
+ * If the C runtime functions can't be looked up, every call falls back to {@link CLinker#allocateMemory(long)} and
+ * {@link CLinker#freeMemory(MemoryAddress)}. Blocks must always be released through {@link #free(long)}, as the two
+ * implementations can't be mixed.
+ */
+final class NativeHeap {
+    private static final MethodHandle MALLOC;
+    private static final MethodHandle CALLOC;
+    private static final MethodHandle FREE;
+
+    static {
+        var lookup = CLinker.systemLookup();
+        var malloc = lookup.lookup("malloc");
+        var calloc = lookup.lookup("calloc");
+        var free = lookup.lookup("free");
+        if (malloc.isPresent() && calloc.isPresent() && free.isPresent()) {
+            var linker = CLinker.getInstance();
+            MALLOC = linker.downcallHandle(malloc.get(),
+                                           MethodType.methodType(MemoryAddress.class, long.class),
+                                           FunctionDescriptor.of(CLinker.C_POINTER, CLinker.C_LONG_LONG));
+            CALLOC = linker.downcallHandle(calloc.get(),
+                                           MethodType.methodType(MemoryAddress.class, long.class, long.class),
+                                           FunctionDescriptor.of(CLinker.C_POINTER, CLinker.C_LONG_LONG, CLinker.C_LONG_LONG));
+            FREE = linker.downcallHandle(free.get(),
+                                         MethodType.methodType(void.class, MemoryAddress.class),
+                                         FunctionDescriptor.ofVoid(CLinker.C_POINTER));
+        } else {
+            MALLOC = CALLOC = FREE = null;
+        }
+    }
+
+    private NativeHeap() {}
+
+    /**
+     * @param size The amount of bytes to allocate
+     * @return The address of the new block, with unspecified contents
+     * @throws OutOfMemoryError If the allocation failed
+     */
+    static long malloc(long size) {
+        long address;
+        if (MALLOC == null) {
+            address = CLinker.allocateMemory(size).toRawLongValue();
+        } else {
+            try {
+                address = ((MemoryAddress) MALLOC.invokeExact(size)).toRawLongValue();
+            } catch (Throwable e) {
+                throw new RuntimeException(e);
+            }
+        }
+        if (address == 0) throw new OutOfMemoryError("Failed to allocate " + size + " bytes of native memory");
+        return address;
+    }
+
+    /**
+     * @param size The amount of bytes to allocate
+     * @return The address of the new block, initialized to zero
+     * @throws OutOfMemoryError If the allocation failed
+     */
+    static long calloc(long size) {
+        if (CALLOC == null) {
+            var address = malloc(size);
+            MemoryUtil.Fill(address, size, (byte) 0);
+            return address;
+        }
+        long address;
+        try {
+            address = ((MemoryAddress) CALLOC.invokeExact(1L, size)).toRawLongValue();
+        } catch (Throwable e) {
+            throw new RuntimeException(e);
+        }
+        if (address == 0) throw new OutOfMemoryError("Failed to allocate " + size + " bytes of native memory");
+        return address;
+    }
+
+    /**
+     * @param address A block previously returned by {@link #malloc(long)} or {@link #calloc(long)}
+     */
+    static void free(long address) {
+        if (FREE == null) {
+            CLinker.freeMemory(MemoryAddress.ofLong(address));
+            return;
+        }
+        try {
+            FREE.invokeExact(MemoryAddress.ofLong(address));
+        } catch (Throwable e) {
+            throw new RuntimeException(e);
+        }
+    }
+}
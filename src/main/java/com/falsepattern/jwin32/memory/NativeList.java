@@ -0,0 +1,154 @@
+/*
+ * Copyright (c) 2021 FalsePattern
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.falsepattern.jwin32.memory;
+
+import jdk.incubator.foreign.MemorySegment;
+
+/**
+ * The common part of the growable off-heap primitive lists, such as {@link NativeIntList}. The elements are stored
+ * contiguously in a segment from a {@link MemoryAllocator}, which can be passed to native code directly. When the list
+ * runs out of space, it moves to a segment twice the size, and frees the old one through
+ * {@link MemoryAllocator#free(MemorySegment)}. With allocators that can't free individual blocks, such as
+ * {@link MemoryStack} or {@link MemoryArena}, the old segments stay reserved until the frame is popped or the arena is
+ * reset, so it's worth passing a good initial capacity to them.
+ * <p>
+ * Lists are not thread safe.
+ */
+public abstract class NativeList implements AutoCloseable {
+    public static final int DEFAULT_CAPACITY = 16;
+
+    private final MemoryAllocator allocator;
+    private final long elementSize;
+    MemorySegment segment;
+    long address;
+    int size;
+    int capacity;
+
+    NativeList(MemoryAllocator allocator, long elementSize, int initialCapacity) {
+        if (initialCapacity <= 0) throw new IllegalArgumentException("List capacity must be positive, got " + initialCapacity);
+        this.allocator = allocator;
+        this.elementSize = elementSize;
+        this.capacity = initialCapacity;
+        this.segment = allocator.mallocUninitialized(initialCapacity * elementSize, elementSize);
+        this.address = segment.address().toRawLongValue();
+    }
+
+    /**
+     * @return The amount of elements in the list
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * @return True if the list has no elements
+     */
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    /**
+     * @return The amount of elements the list can hold before it has to grow
+     */
+    public int capacity() {
+        return capacity;
+    }
+
+    /**
+     * The segment is only valid until the list grows or is closed.
+     * @return A segment covering the elements of the list, to be passed to native code
+     */
+    public MemorySegment segment() {
+        return segment.asSlice(0, size * elementSize);
+    }
+
+    /**
+     * The address is only valid until the list grows or is closed.
+     * @return The address of the first element
+     */
+    public long address() {
+        return address;
+    }
+
+    /**
+     * Removes every element, keeping the capacity.
+     */
+    public void clear() {
+        size = 0;
+    }
+
+    /**
+     * Makes sure the list can hold the given amount of elements without growing again.
+     * @param minCapacity The amount of elements needed
+     */
+    public void ensureCapacity(int minCapacity) {
+        if (minCapacity > capacity) grow(minCapacity);
+    }
+
+    /**
+     * Makes room for more elements at the end of the list, without adding them yet. Callers write the new elements,
+     * then {@link #commit(int)} them, so a failed write leaves the list unchanged.
+     * @param count The amount of elements to add
+     * @return The byte offset of the first new element
+     */
+    long reserve(int count) {
+        if (count < 0) throw new IllegalArgumentException("Negative element count " + count);
+        var newSize = size + count;
+        if (newSize < 0) throw new IllegalStateException("List would exceed the maximum size of " + Integer.MAX_VALUE + " elements!");
+        ensureCapacity(newSize);
+        return size * elementSize;
+    }
+
+    /**
+     * Adds the elements written after a {@link #reserve(int)} to the list.
+     * @param count The amount of elements that were reserved
+     */
+    void commit(int count) {
+        size += count;
+    }
+
+    long offsetOf(int index) {
+        if (index < 0 || index >= size) throw new IndexOutOfBoundsException("Index " + index + " out of bounds for list of size " + size);
+        return index * elementSize;
+    }
+
+    private void grow(int minCapacity) {
+        var newCapacity = (int) Math.min(Math.max((long) capacity * 2, minCapacity), Integer.MAX_VALUE);
+        var newSegment = allocator.mallocUninitialized(newCapacity * elementSize, elementSize);
+        newSegment.copyFrom(segment.asSlice(0, size * elementSize));
+        allocator.free(segment);
+        segment = newSegment;
+        address = newSegment.address().toRawLongValue();
+        capacity = newCapacity;
+    }
+
+    /**
+     * Frees the backing segment through the allocator of the list. The list can't be used afterwards.
+     */
+    @Override
+    public void close() {
+        allocator.free(segment);
+        segment = null;
+        address = 0;
+        size = capacity = 0;
+    }
+}
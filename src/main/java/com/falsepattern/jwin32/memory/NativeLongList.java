@@ -0,0 +1,111 @@
+/*
+ * Copyright (c) 2021 FalsePattern
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.falsepattern.jwin32.memory;
+
+import java.util.Objects;
+import java.util.function.LongConsumer;
+
+/**
+ * A growable off-heap list of long values. See {@link NativeList}.
+ */
+public final class NativeLongList extends NativeList {
+    /**
+     * @param allocator The allocator the list takes its memory from
+     */
+    public NativeLongList(MemoryAllocator allocator) {
+        this(allocator, DEFAULT_CAPACITY);
+    }
+
+    /**
+     * @param allocator The allocator the list takes its memory from
+     * @param initialCapacity The amount of elements the list can hold before it has to grow
+     */
+    public NativeLongList(MemoryAllocator allocator, int initialCapacity) {
+        super(allocator, Long.BYTES, initialCapacity);
+    }
+
+    /**
+     * @param value The value to append
+     */
+    public void add(long value) {
+        var offset = reserve(1);
+        MemoryUtil.SetLong(address + offset, value);
+        commit(1);
+    }
+
+    /**
+     * @param values The values to append
+     */
+    public void addAll(long... values) {
+        addAll(values, 0, values.length);
+    }
+
+    /**
+     * @param values The array to append values from
+     * @param from The index of the first value to append
+     * @param count The amount of values to append
+     */
+    public void addAll(long[] values, int from, int count) {
+        Objects.checkFromIndexSize(from, count, values.length);
+        var offset = reserve(count);
+        MemoryUtil.Copy(values, from, segment, offset, count);
+        commit(count);
+    }
+
+    /**
+     * @param other The list to append the values of
+     */
+    public void addAll(NativeLongList other) {
+        var count = other.size;
+        var offset = reserve(count);
+        segment.asSlice(offset).copyFrom(other.segment.asSlice(0, count * Long.BYTES));
+        commit(count);
+    }
+
+    public long get(int index) {
+        return MemoryUtil.GetLong(address + offsetOf(index));
+    }
+
+    public void set(int index, long value) {
+        MemoryUtil.SetLong(address + offsetOf(index), value);
+    }
+
+    /**
+     * Calls the action with every value in order, without boxing them.
+     * @param action The action to call
+     */
+    public void forEach(LongConsumer action) {
+        var end = address + size * (long) Long.BYTES;
+        for (var element = address; element < end; element += Long.BYTES) {
+            action.accept(MemoryUtil.GetLong(element));
+        }
+    }
+
+    /**
+     * @return A copy of the values on the heap
+     */
+    public long[] toArray() {
+        var result = new long[size];
+        MemoryUtil.Copy(segment, 0, result, 0, size);
+        return result;
+    }
+}
@@ -0,0 +1,226 @@
+/*
+ * Copyright (c) 2021 FalsePattern
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.falsepattern.jwin32.memory;
+
+import jdk.incubator.foreign.MemorySegment;
+
+/**
+ * An off-heap {@code long -> long} hash map, for looking up Java side state by native handles without boxing. Entries
+ * are stored as key/value pairs in a single table from a {@link MemoryAllocator}, and found with linear probing.
+ * Removing an entry shifts the following entries of its cluster back, so there are no tombstones, and lookups never
+ * slow down after many removals. Neither lookups nor updates allocate on the heap, except when the table grows.
+ * <p>
+ * Not thread safe, see {@link ConcurrentNativeLongMap} for a thread safe variant.
+ */
+public final class NativeLongMap implements AutoCloseable {
+    public static final int DEFAULT_CAPACITY = 64;
+    private static final long ENTRY_SIZE = 16;
+    private static final long VALUE_OFFSET = 8;
+
+    private final MemoryAllocator allocator;
+    private MemorySegment table;
+    private long address;
+    private long mask;
+    private long threshold;
+    private long size;
+    //Key 0 marks empty slots in the table, so its entry is kept on the side
+    private boolean hasZeroKey;
+    private long zeroValue;
+
+    /**
+     * @param allocator The allocator the table is taken from, such as {@link MemoryUtil#instance}. It should be able to
+     *                  free individual blocks, as the old table is freed every time the map grows.
+     */
+    public NativeLongMap(MemoryAllocator allocator) {
+        this(allocator, DEFAULT_CAPACITY);
+    }
+
+    /**
+     * @param allocator The allocator the table is taken from, such as {@link MemoryUtil#instance}. It should be able to
+     *                  free individual blocks, as the old table is freed every time the map grows.
+     * @param expectedSize The amount of entries the map can hold before it has to grow
+     */
+    public NativeLongMap(MemoryAllocator allocator, long expectedSize) {
+        if (expectedSize < 0) throw new IllegalArgumentException("Expected size must not be negative, got " + expectedSize);
+        this.allocator = allocator;
+        allocateTable(Math.max(Long.highestOneBit(Math.max(expectedSize * 4 / 3, 8) - 1) << 1, 8));
+    }
+
+    private void allocateTable(long capacity) {
+        if (capacity > 1L << 32) throw new IllegalStateException("Native long map would exceed the maximum capacity of " + (1L << 32) + " slots!");
+        table = allocator.callocAligned(capacity * ENTRY_SIZE, ENTRY_SIZE);
+        address = table.address().toRawLongValue();
+        mask = capacity - 1;
+        threshold = capacity * 3 / 4;
+    }
+
+    private static long home(long key) {
+        return AllocationRegistry.hash(key) & 0xFFFFFFFFL;
+    }
+
+    /**
+     * @return The slot of the key, or the empty slot it would be inserted into, as a byte offset into the table
+     */
+    private long find(long key) {
+        for (long i = home(key) & mask; ; i = (i + 1) & mask) {
+            var entry = address + i * ENTRY_SIZE;
+            var current = MemoryUtil.GetLong(entry);
+            if (current == key || current == 0) return entry;
+        }
+    }
+
+    /**
+     * @return The amount of entries in the map
+     */
+    public long size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    public boolean containsKey(long key) {
+        if (key == 0) return hasZeroKey;
+        return MemoryUtil.GetLong(find(key)) != 0;
+    }
+
+    /**
+     * @param key The key to look up
+     * @param defaultValue The value to return if the key is not in the map
+     * @return The value of the key, or the default value
+     */
+    public long get(long key, long defaultValue) {
+        if (key == 0) return hasZeroKey ? zeroValue : defaultValue;
+        var entry = find(key);
+        return MemoryUtil.GetLong(entry) == 0 ? defaultValue : MemoryUtil.GetLong(entry + VALUE_OFFSET);
+    }
+
+    /**
+     * @param key The key to set
+     * @param value The new value of the key
+     * @return True if the key was not in the map before
+     */
+    public boolean put(long key, long value) {
+        if (key == 0) {
+            var added = !hasZeroKey;
+            hasZeroKey = true;
+            zeroValue = value;
+            if (added) size++;
+            return added;
+        }
+        var entry = find(key);
+        MemoryUtil.SetLong(entry + VALUE_OFFSET, value);
+        if (MemoryUtil.GetLong(entry) != 0) return false;
+        MemoryUtil.SetLong(entry, key);
+        if (++size - (hasZeroKey ? 1 : 0) > threshold) resize();
+        return true;
+    }
+
+    /**
+     * @param key The key to remove
+     * @return True if the key was in the map
+     */
+    public boolean remove(long key) {
+        if (key == 0) {
+            var removed = hasZeroKey;
+            hasZeroKey = false;
+            if (removed) size--;
+            return removed;
+        }
+        var entry = find(key);
+        if (MemoryUtil.GetLong(entry) == 0) return false;
+        size--;
+        var hole = (entry - address) / ENTRY_SIZE;
+        for (long i = (hole + 1) & mask; ; i = (i + 1) & mask) {
+            var current = address + i * ENTRY_SIZE;
+            var currentKey = MemoryUtil.GetLong(current);
+            if (currentKey == 0) break;
+            var home = home(currentKey) & mask;
+            //Move the entry into the hole if the hole lies cyclically between its home slot and its current slot
+            if (((i - home) & mask) >= ((i - hole) & mask)) {
+                var holeEntry = address + hole * ENTRY_SIZE;
+                MemoryUtil.SetLong(holeEntry, currentKey);
+                MemoryUtil.SetLong(holeEntry + VALUE_OFFSET, MemoryUtil.GetLong(current + VALUE_OFFSET));
+                hole = i;
+            }
+        }
+        MemoryUtil.SetLong(address + hole * ENTRY_SIZE, 0);
+        return true;
+    }
+
+    /**
+     * Removes every entry, keeping the capacity.
+     */
+    public void clear() {
+        MemoryUtil.Fill(address, table.byteSize(), (byte) 0);
+        size = 0;
+        hasZeroKey = false;
+    }
+
+    /**
+     * Calls the action with every entry, in no particular order. The map must not be modified during the iteration.
+     * @param action The action to call
+     */
+    public void forEach(LongLongConsumer action) {
+        if (hasZeroKey) action.accept(0, zeroValue);
+        var end = address + table.byteSize();
+        for (var entry = address; entry < end; entry += ENTRY_SIZE) {
+            var key = MemoryUtil.GetLong(entry);
+            if (key != 0) action.accept(key, MemoryUtil.GetLong(entry + VALUE_OFFSET));
+        }
+    }
+
+    private void resize() {
+        var oldTable = table;
+        var oldAddress = address;
+        var oldEnd = oldAddress + oldTable.byteSize();
+        allocateTable((mask + 1) * 2);
+        for (var entry = oldAddress; entry < oldEnd; entry += ENTRY_SIZE) {
+            var key = MemoryUtil.GetLong(entry);
+            if (key == 0) continue;
+            var slot = find(key);
+            MemoryUtil.SetLong(slot, key);
+            MemoryUtil.SetLong(slot + VALUE_OFFSET, MemoryUtil.GetLong(entry + VALUE_OFFSET));
+        }
+        allocator.free(oldTable);
+    }
+
+    /**
+     * Frees the table through the allocator of the map. The map can't be used afterwards.
+     */
+    @Override
+    public void close() {
+        allocator.free(table);
+        table = null;
+        address = 0;
+        size = 0;
+    }
+
+    /**
+     * A consumer of primitive key/value pairs.
+     */
+    @FunctionalInterface
+    public interface LongLongConsumer {
+        void accept(long key, long value);
+    }
+}
@@ -0,0 +1,159 @@
+/*
+ * Copyright (c) 2021 FalsePattern
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.falsepattern.jwin32.memory;
+
+import jdk.incubator.foreign.MemorySegment;
+
+/**
+ * The common part of the off-heap ring buffers of fixed-size records, {@link SpscRingBuffer} and
+ * {@link MpscRingBuffer}. The counters and the records live in a single segment from a {@link MemoryAllocator}, so
+ * producing and draining records doesn't allocate on the heap. The allocator must hand out segments that can be
+ * accessed from every producer and consumer thread, such as {@link MemoryUtil#instance}.
+ * <p>
+ * Producing is done in two steps: a batch of records is claimed with {@code tryClaim}, written through
+ * {@link #recordAddress(long)}, and then made visible to the consumer with {@code publish}. The consumer processes
+ * the published records with {@link #drain(RecordHandler, int)}. Records are 8 byte aligned.
+ */
+public abstract class NativeRingBuffer implements AutoCloseable {
+    //The counters are kept on separate cache lines (and a spare one, for adjacent line prefetching)
+    static final long PRODUCER_OFFSET = 0;
+    static final long CONSUMER_OFFSET = 128;
+    static final long RECORDS_OFFSET = 256;
+
+    private final MemoryAllocator allocator;
+    final MemorySegment segment;
+    final long recordsAddress;
+    final int capacity;
+    final long mask;
+    final long recordSize;
+    final long stride;
+    final long recordOffset;
+
+    NativeRingBuffer(MemoryAllocator allocator, int capacity, long recordSize, long slotHeader) {
+        if (capacity <= 0 || Integer.bitCount(capacity) != 1) throw new IllegalArgumentException("Ring buffer capacity must be a positive power of two, got " + capacity);
+        if (recordSize <= 0) throw new IllegalArgumentException("Ring buffer record size must be positive, got " + recordSize);
+        this.allocator = allocator;
+        this.capacity = capacity;
+        this.mask = capacity - 1;
+        this.recordSize = recordSize;
+        this.recordOffset = slotHeader;
+        this.stride = slotHeader + ((recordSize + 7) & -8L);
+        this.segment = allocator.callocAligned(RECORDS_OFFSET + stride * capacity, 128);
+        this.recordsAddress = segment.address().toRawLongValue() + RECORDS_OFFSET;
+    }
+
+    /**
+     * @return The amount of records the buffer can hold
+     */
+    public int capacity() {
+        return capacity;
+    }
+
+    /**
+     * @return The size of a single record, in bytes
+     */
+    public long recordSize() {
+        return recordSize;
+    }
+
+    /**
+     * @return The segment holding the counters and records, for sharing the buffer with native code
+     */
+    public MemorySegment segment() {
+        return segment;
+    }
+
+    /**
+     * @param sequence The sequence number of a claimed or published record
+     * @return The native address of the record
+     */
+    public long recordAddress(long sequence) {
+        return recordsAddress + (sequence & mask) * stride + recordOffset;
+    }
+
+    /**
+     * @return The amount of records that were not yet drained. Only a snapshot.
+     */
+    public int size() {
+        var consumer = (long) MemoryUtil.VH_LONG.getAcquire(segment, CONSUMER_OFFSET);
+        var producer = (long) MemoryUtil.VH_LONG.getAcquire(segment, PRODUCER_OFFSET);
+        return (int) (producer - consumer);
+    }
+
+    /**
+     * Claims a single record. See {@link #tryClaim(int)}.
+     */
+    public long tryClaim() {
+        return tryClaim(1);
+    }
+
+    /**
+     * Claims a batch of consecutive records for writing.
+     * @param count The amount of records to claim
+     * @return The sequence number of the first claimed record, or -1 if the buffer doesn't have room for all of them
+     */
+    public abstract long tryClaim(int count);
+
+    /**
+     * Publishes a single record. See {@link #publish(long, int)}.
+     */
+    public void publish(long sequence) {
+        publish(sequence, 1);
+    }
+
+    /**
+     * Makes a batch of claimed records visible to the consumer. Everything written to the records before this call is
+     * visible to the consumer when it drains them.
+     * @param sequence The sequence number returned by {@link #tryClaim(int)}
+     * @param count The amount of records that were claimed
+     */
+    public abstract void publish(long sequence, int count);
+
+    /**
+     * Processes the published records in order. Must only be called from a single consumer thread at a time. The
+     * records are released back to the producers in one go once the handler returned for all of them.
+     * @param handler The handler to call with every record
+     * @param limit The maximum amount of records to process
+     * @return The amount of records processed
+     */
+    public abstract int drain(RecordHandler handler, int limit);
+
+    /**
+     * Frees the segment of the buffer through its allocator. The buffer can't be used afterwards.
+     */
+    @Override
+    public void close() {
+        allocator.free(segment);
+    }
+
+    /**
+     * Consumes records without allocating.
+     */
+    @FunctionalInterface
+    public interface RecordHandler {
+        /**
+         * @param address The native address of the record, which is only valid during this call
+         * @param sequence The sequence number of the record
+         */
+        void onRecord(long address, long sequence);
+    }
+}
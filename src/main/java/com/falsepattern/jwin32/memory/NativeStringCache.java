@@ -0,0 +1,193 @@
+/*
+ * Copyright (c) 2021 FalsePattern
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.falsepattern.jwin32.memory;
+
+import jdk.incubator.foreign.CLinker;
+import jdk.incubator.foreign.MemorySegment;
+import jdk.incubator.foreign.ResourceScope;
+
+import java.util.ArrayList;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A cache of long-lived, read-only native copies of frequently used strings, such as window class names, shader entry
+ * points and semantic names. A repeated string costs a concurrent hash lookup instead of an encode and a copy.
+ * <p>
+ * Both the ANSI (platform charset, see {@link MemoryAllocator#toCString(String)}) and the UTF-16LE (see
+ * {@link MemoryAllocator#toWString(String)}) forms are cached. When the total size of the cached strings exceeds the
+ * byte budget, the least recently used ones are evicted. Every native copy lives in its own implicit scope, so an
+ * evicted string stays valid as long as its segment is reachable. Don't hold on to raw addresses of cached strings
+ * without also keeping the segment around!
+ */
+public class NativeStringCache {
+    public static final String PROPERTY_BUDGET = "jwin32.memory.stringCache.budget";
+    public static final long DEFAULT_BUDGET = Long.getLong(PROPERTY_BUDGET, 1024 * 1024);
+    //Eviction frees a bit more than necessary, so it doesn't have to run on every miss once the cache is full
+    private static final double EVICTION_TARGET = 0.75;
+
+    private static final NativeStringCache shared = new NativeStringCache(DEFAULT_BUDGET);
+
+    private final long budget;
+    private final Map<String, Entry> ansi = new ConcurrentHashMap<>();
+    private final Map<String, Entry> wide = new ConcurrentHashMap<>();
+    private final AtomicLong usedBytes = new AtomicLong();
+    //A logical clock that only advances when a string is inserted, so hits only read it, and write the entry's access
+    //time once per tick instead of on every lookup. Concurrent hits of a hot string then share its cache line.
+    private final AtomicLong clock = new AtomicLong();
+    private final ReentrantLock evictionLock = new ReentrantLock();
+
+    /**
+     * @param budget The maximum total size of the cached native strings, in bytes
+     */
+    public NativeStringCache(long budget) {
+        if (budget <= 0) throw new IllegalArgumentException("String cache budget must be positive, got " + budget);
+        this.budget = budget;
+    }
+
+    /**
+     * @return The process-wide cache, with a budget of {@value #PROPERTY_BUDGET} bytes (1 MB by default)
+     */
+    public static NativeStringCache shared() {
+        return shared;
+    }
+
+    /**
+     * Retrieves the read-only, null terminated native copy of a string, encoded in the platform charset.
+     * @param str The string to look up
+     * @return The cached native string
+     */
+    public MemorySegment ansi(String str) {
+        var entry = ansi.get(str);
+        if (entry == null) {
+            entry = insert(ansi, str, CLinker.toCString(str, ResourceScope.newImplicitScope()));
+        }
+        touch(entry);
+        return entry.segment;
+    }
+
+    /**
+     * Retrieves the read-only, null terminated native UTF-16LE copy of a string.
+     * @param str The string to look up
+     * @return The cached native string
+     */
+    public MemorySegment wide(String str) {
+        var entry = wide.get(str);
+        if (entry == null) {
+            var segment = MemorySegment.allocateNative((str.length() + 1L) * 2, 2, ResourceScope.newImplicitScope());
+            MemoryUtil.WriteWString(str, segment, 0);
+            entry = insert(wide, str, segment);
+        }
+        touch(entry);
+        return entry.segment;
+    }
+
+    /**
+     * @return The total size of the currently cached native strings, in bytes
+     */
+    public long usedBytes() {
+        return usedBytes.get();
+    }
+
+    /**
+     * Drops every cached string.
+     */
+    public void clear() {
+        evictionLock.lock();
+        try {
+            evictAll(ansi);
+            evictAll(wide);
+        } finally {
+            evictionLock.unlock();
+        }
+    }
+
+    private void touch(Entry entry) {
+        var now = clock.get();
+        if (entry.lastAccess != now) entry.lastAccess = now;
+    }
+
+    private Entry insert(Map<String, Entry> map, String str, MemorySegment segment) {
+        var entry = new Entry(segment.asReadOnly());
+        //Stamped before it can be evicted, otherwise it would look like the oldest entry and evict itself
+        entry.lastAccess = clock.incrementAndGet();
+        var size = segment.byteSize();
+        if (size > budget) {
+            //Too large to ever be cached, hand out a private copy
+            return entry;
+        }
+        var existing = map.putIfAbsent(str, entry);
+        if (existing != null) {
+            return existing;
+        }
+        if (usedBytes.addAndGet(size) > budget) {
+            evict();
+        }
+        return entry;
+    }
+
+    /**
+     * Evicts the least recently used strings, until the cache is back below the eviction target. If another thread is
+     * already evicting, this returns immediately.
+     */
+    private void evict() {
+        if (!evictionLock.tryLock()) return;
+        try {
+            var candidates = new ArrayList<Candidate>(ansi.size() + wide.size());
+            ansi.forEach((str, entry) -> candidates.add(new Candidate(ansi, str, entry)));
+            wide.forEach((str, entry) -> candidates.add(new Candidate(wide, str, entry)));
+            candidates.sort((a, b) -> Long.compare(a.entry.lastAccess, b.entry.lastAccess));
+            var target = (long) (budget * EVICTION_TARGET);
+            for (var candidate : candidates) {
+                if (usedBytes.get() <= target) break;
+                if (candidate.map.remove(candidate.str, candidate.entry)) {
+                    usedBytes.addAndGet(-candidate.entry.segment.byteSize());
+                }
+            }
+        } finally {
+            evictionLock.unlock();
+        }
+    }
+
+    private void evictAll(Map<String, Entry> map) {
+        map.forEach((str, entry) -> {
+            if (map.remove(str, entry)) {
+                usedBytes.addAndGet(-entry.segment.byteSize());
+            }
+        });
+    }
+
+    private static final class Entry {
+        final MemorySegment segment;
+        //The clock tick of the last lookup. Approximate, racy updates are fine for picking eviction victims.
+        long lastAccess;
+
+        Entry(MemorySegment segment) {
+            this.segment = segment;
+        }
+    }
+
+    private record Candidate(Map<String, Entry> map, String str, Entry entry) {
+    }
+}
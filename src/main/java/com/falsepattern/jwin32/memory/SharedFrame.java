@@ -0,0 +1,128 @@
+/*
+ * Copyright (c) 2021 FalsePattern
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.falsepattern.jwin32.memory;
+
+import jdk.incubator.foreign.MemoryAddress;
+import jdk.incubator.foreign.MemorySegment;
+import jdk.incubator.foreign.ResourceScope;
+
+/**
+ * A memory stack frame that can be shared between threads, for producer/consumer pipelines that would otherwise have
+ * to copy between thread confined frames.
+ * <p>
+ * The frame lives on a stack leased from a {@link MemoryStackPool}, and every segment it hands out is bound to a
+ * shared scope, so any thread may read and write them. Only the owner of the frame may allocate from it and close it.
+ * Ownership starts with the thread that opened the frame, and can be passed on with {@link #handOff(Thread)}, after
+ * which the consumer closes the frame once it's done. Closing it invalidates every segment, and returns the stack to
+ * its pool.
+ */
+public final class SharedFrame implements MemoryAllocator, AutoCloseable {
+    private final MemoryStack stack;
+    private final ResourceScope scope = ResourceScope.newSharedScope();
+    //Volatile, so everything the previous owner wrote is visible to the next one
+    private volatile Thread owner;
+
+    SharedFrame(MemoryStack stack) {
+        this.stack = stack;
+        this.owner = Thread.currentThread();
+    }
+
+    private void checkOwner() {
+        if (owner != Thread.currentThread()) throw new IllegalStateException("Shared frame is owned by " + owner + ", not by " + Thread.currentThread());
+    }
+
+    /**
+     * Passes ownership of the frame to another thread. The current thread must no longer allocate from the frame, or
+     * close it, but may keep accessing the segments until the new owner closes it.
+     * @param consumer The new owner of the frame
+     * @return This frame
+     */
+    public SharedFrame handOff(Thread consumer) {
+        checkOwner();
+        owner = consumer;
+        return this;
+    }
+
+    /**
+     * @return The thread currently owning this frame
+     */
+    public Thread owner() {
+        return owner;
+    }
+
+    /**
+     * @return The shared scope of this frame, which is closed together with the frame
+     */
+    public ResourceScope scope() {
+        return scope;
+    }
+
+    private ResourceScope segmentScope() {
+        return MemoryChecks.UNCHECKED ? ResourceScope.globalScope() : scope;
+    }
+
+    @Override
+    public MemorySegment mallocAligned(long size, long alignment) {
+        return MemoryAddress.ofLong(nmallocAligned(size, alignment)).asSegment(size, segmentScope());
+    }
+
+    @Override
+    public MemorySegment callocAligned(long size, long alignment) {
+        return MemoryAddress.ofLong(ncallocAligned(size, alignment)).asSegment(size, segmentScope());
+    }
+
+    @Override
+    public MemorySegment malloc(long size) {
+        return mallocAligned(size, 1);
+    }
+
+    /**
+     * Unlike the segments, raw addresses are not bound to the scope of the frame, so they're not checked after it's
+     * closed.
+     */
+    @Override
+    public long nmallocAligned(long size, long alignment) {
+        checkOwner();
+        return stack.nmallocAligned(size, alignment);
+    }
+
+    @Override
+    public long ncallocAligned(long size, long alignment) {
+        checkOwner();
+        return stack.ncallocAligned(size, alignment);
+    }
+
+    @Override
+    public long nmalloc(long size) {
+        return nmallocAligned(size, 1);
+    }
+
+    /**
+     * Closes the shared scope, which invalidates every segment of this frame, and pops the frame off its stack.
+     */
+    @Override
+    public void close() {
+        checkOwner();
+        scope.close();
+        stack.pop();
+    }
+}
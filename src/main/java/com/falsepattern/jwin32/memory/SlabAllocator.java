@@ -0,0 +1,329 @@
+/*
+ * Copyright (c) 2021 FalsePattern
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.falsepattern.jwin32.memory;
+
+import jdk.incubator.foreign.MemoryAddress;
+import jdk.incubator.foreign.MemorySegment;
+import jdk.incubator.foreign.ResourceScope;
+
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * An allocator for small, fixed-size structs (RECT, POINT, GUID, out-params, ...). Blocks are served from power-of-two
+ * size classes between {@value #MIN_BLOCK_SIZE} and {@value #MAX_BLOCK_SIZE} bytes, carved out of large native slabs.
+ * <p>
+ * Every thread keeps two magazines (small stacks of free blocks) per size class, and only touches the shared depot of
+ * its size class when both of them run empty or full, so allocating and freeing a small block is usually just an array
+ * access: no native call, no scope creation and no locking. Blocks can be freed from any thread. The magazines of threads that died
+ * are flushed back to the depots the next time a thread starts using the allocator, or a depot runs out of blocks.
+ * <p>
+ * Blocks are naturally aligned to their size class, so alignments up to {@value #MAX_BLOCK_SIZE} are supported.
+ * Larger blocks are delegated to {@link MemoryUtil}. Slabs are only returned to the OS when the allocator is
+ * {@link #close()}-d, which invalidates every segment it handed out.
+ */
+public class SlabAllocator implements MemoryAllocator, AutoCloseable {
+    public static final long MIN_BLOCK_SIZE = 8;
+    public static final long MAX_BLOCK_SIZE = 4096;
+    private static final int MIN_CLASS_SHIFT = 3;
+    private static final int CLASS_COUNT = 10;
+    //Slabs are aligned to their size, so the owning slab's header can be found from any block address
+    private static final long SLAB_SIZE = 64 * 1024;
+    private static final int MAGAZINE_SIZE = 32;
+
+    private final ResourceScope scope = ResourceScope.newSharedScope();
+    private final Depot[] depots = new Depot[CLASS_COUNT];
+    private final ThreadLocal<ThreadCache> caches = ThreadLocal.withInitial(this::register);
+    //Every thread cache that wasn't flushed yet, so the ones of dead threads can be reclaimed
+    private final List<ThreadCache> threadCaches = new ArrayList<>();
+
+    public SlabAllocator() {
+        for (int i = 0; i < CLASS_COUNT; i++) {
+            depots[i] = new Depot(i);
+        }
+    }
+
+    private static int sizeClass(long size, long alignment) {
+        var blockSize = Math.max(Math.max(size, alignment), MIN_BLOCK_SIZE);
+        return 64 - Long.numberOfLeadingZeros(blockSize - 1) - MIN_CLASS_SHIFT;
+    }
+
+    private static long blockSize(int sizeClass) {
+        return 1L << (sizeClass + MIN_CLASS_SHIFT);
+    }
+
+    @Override
+    public MemorySegment mallocAligned(long size, long alignment) {
+        if (size > MAX_BLOCK_SIZE) return MemoryUtil.instance.mallocAligned(size, alignment);
+        return MemoryAddress.ofLong(nmallocAligned(size, alignment)).asSegment(size, MemoryChecks.UNCHECKED ? ResourceScope.globalScope() : scope);
+    }
+
+    @Override
+    public MemorySegment malloc(long size) {
+        return mallocAligned(size, 1);
+    }
+
+    @Override
+    public long nmallocAligned(long size, long alignment) {
+        if (size > MAX_BLOCK_SIZE) return MemoryUtil.instance.nmallocAligned(size, alignment);
+        if (alignment > MAX_BLOCK_SIZE) throw new IllegalArgumentException("Tried to allocate with alignment " + alignment + ", which is greater than the maximum " + MAX_BLOCK_SIZE);
+        var address = caches.get().allocate(this, sizeClass(size, alignment));
+        if (MemoryChecks.CHECKED) MemoryChecks.allocated(address);
+        if (MemoryProfiler.ENABLED) MemoryProfiler.allocated(MemoryEvents.SLAB_ALLOCATOR, address, size);
+        MemoryEvents.allocation(MemoryEvents.SLAB_ALLOCATOR, address, size, alignment);
+        return address;
+    }
+
+    @Override
+    public long nmalloc(long size) {
+        return nmallocAligned(size, 1);
+    }
+
+    @Override
+    public void nfree(long address, long size) {
+        if (size > MAX_BLOCK_SIZE) {
+            MemoryUtil.Free(address);
+            return;
+        }
+        if (MemoryChecks.CHECKED) MemoryChecks.freed(address);
+        if (MemoryProfiler.ENABLED) MemoryProfiler.freed(address);
+        var sizeClass = MemoryUtil.GetInt(address & -SLAB_SIZE);
+        caches.get().free(this, sizeClass, address);
+        MemoryEvents.free(MemoryEvents.SLAB_ALLOCATOR, address, size);
+    }
+
+    private ThreadCache register() {
+        var cache = new ThreadCache(Thread.currentThread());
+        synchronized (threadCaches) {
+            reclaimDead();
+            threadCaches.add(cache);
+        }
+        return cache;
+    }
+
+    /**
+     * Flushes the magazines of dead threads back to the depots. Must hold the threadCaches lock.
+     * @return True if any cache was flushed
+     */
+    private boolean reclaimDead() {
+        var reclaimed = false;
+        for (var iterator = threadCaches.iterator(); iterator.hasNext(); ) {
+            var cache = iterator.next();
+            if (cache.isAlive()) continue;
+            iterator.remove();
+            cache.flush(depots);
+            reclaimed = true;
+        }
+        return reclaimed;
+    }
+
+    /**
+     * Swaps an empty magazine of the calling thread for a full one, reclaiming the caches of dead threads before
+     * carving new slabs.
+     */
+    private Magazine refill(int sizeClass, Magazine magazine) {
+        var depot = depots[sizeClass];
+        var result = depot.takeFull(magazine);
+        if (result == null) {
+            boolean reclaimed;
+            synchronized (threadCaches) {
+                reclaimed = reclaimDead();
+            }
+            if (reclaimed) result = depot.takeFull(magazine);
+        }
+        return result != null ? result : depot.swapEmpty(magazine);
+    }
+
+    /**
+     * Releases every slab. Segments allocated from this allocator can no longer be accessed afterwards. The thread
+     * caches don't reference the allocator, so the ones other threads still hold become garbage together with it.
+     */
+    @Override
+    public void close() {
+        synchronized (threadCaches) {
+            threadCaches.clear();
+        }
+        caches.remove();
+        scope.close();
+    }
+
+    /**
+     * A fixed capacity stack of free block addresses.
+     */
+    private static final class Magazine {
+        final long[] blocks = new long[MAGAZINE_SIZE];
+        int count;
+    }
+
+    /**
+     * Shared per size class storage for full and empty magazines, which also carves new blocks out of slabs when it
+     * runs out of full magazines.
+     */
+    private final class Depot {
+        private final int sizeClass;
+        private final long blockSize;
+        private Magazine[] full = new Magazine[8];
+        private int fullCount;
+        private Magazine[] empty = new Magazine[8];
+        private int emptyCount;
+        private long cursor;
+        private long end;
+
+        Depot(int sizeClass) {
+            this.sizeClass = sizeClass;
+            this.blockSize = blockSize(sizeClass);
+        }
+
+        /**
+         * Takes an empty magazine and returns a full one, if the depot has any.
+         * @return The full magazine, or null if there is none, in which case the empty magazine isn't taken
+         */
+        synchronized Magazine takeFull(Magazine magazine) {
+            if (fullCount == 0) return null;
+            if (emptyCount == empty.length) empty = Arrays.copyOf(empty, empty.length * 2);
+            empty[emptyCount++] = magazine;
+            var result = full[--fullCount];
+            full[fullCount] = null;
+            return result;
+        }
+
+        /**
+         * Takes back a magazine of a dead thread, which may be partially filled.
+         */
+        synchronized void reclaim(Magazine magazine) {
+            if (magazine.count == 0) {
+                if (emptyCount == empty.length) empty = Arrays.copyOf(empty, empty.length * 2);
+                empty[emptyCount++] = magazine;
+            } else {
+                if (fullCount == full.length) full = Arrays.copyOf(full, full.length * 2);
+                full[fullCount++] = magazine;
+            }
+        }
+
+        /**
+         * Takes an empty magazine and returns a full one, carving new blocks if the depot has no full magazines.
+         */
+        synchronized Magazine swapEmpty(Magazine magazine) {
+            if (emptyCount == empty.length) empty = Arrays.copyOf(empty, empty.length * 2);
+            empty[emptyCount++] = magazine;
+            if (fullCount > 0) {
+                var result = full[--fullCount];
+                full[fullCount] = null;
+                return result;
+            }
+            var result = takeEmpty();
+            carve(result);
+            return result;
+        }
+
+        /**
+         * Takes a full magazine and returns an empty one.
+         */
+        synchronized Magazine swapFull(Magazine magazine) {
+            if (fullCount == full.length) full = Arrays.copyOf(full, full.length * 2);
+            full[fullCount++] = magazine;
+            return takeEmpty();
+        }
+
+        private Magazine takeEmpty() {
+            if (emptyCount == 0) return new Magazine();
+            var result = empty[--emptyCount];
+            empty[emptyCount] = null;
+            return result;
+        }
+
+        private void carve(Magazine magazine) {
+            while (magazine.count < MAGAZINE_SIZE) {
+                if (cursor == end) {
+                    var slab = MemorySegment.allocateNative(SLAB_SIZE, SLAB_SIZE, scope).address().toRawLongValue();
+                    //The first block of every slab holds the size class
+                    MemoryUtil.SetInt(slab, sizeClass);
+                    cursor = slab + blockSize;
+                    end = slab + SLAB_SIZE;
+                }
+                magazine.blocks[magazine.count++] = cursor;
+                cursor += blockSize;
+            }
+        }
+    }
+
+    /**
+     * The magazines of a single thread. Static, so the value held by the thread local doesn't keep the allocator (and
+     * with it, the thread local itself) reachable.
+     */
+    private static final class ThreadCache {
+        private final Magazine[] loaded = new Magazine[CLASS_COUNT];
+        private final Magazine[] previous = new Magazine[CLASS_COUNT];
+        private final WeakReference<Thread> owner;
+
+        ThreadCache(Thread owner) {
+            this.owner = new WeakReference<>(owner);
+            for (int i = 0; i < CLASS_COUNT; i++) {
+                loaded[i] = new Magazine();
+                previous[i] = new Magazine();
+            }
+        }
+
+        boolean isAlive() {
+            var thread = owner.get();
+            return thread != null && thread.isAlive();
+        }
+
+        /**
+         * Hands every magazine to the depots. Only called once the owner thread died, which makes its writes visible.
+         */
+        void flush(Depot[] depots) {
+            for (int i = 0; i < CLASS_COUNT; i++) {
+                depots[i].reclaim(loaded[i]);
+                depots[i].reclaim(previous[i]);
+            }
+        }
+
+        long allocate(SlabAllocator allocator, int sizeClass) {
+            var magazine = loaded[sizeClass];
+            if (magazine.count == 0) {
+                var other = previous[sizeClass];
+                previous[sizeClass] = magazine;
+                if (other.count == 0) {
+                    other = allocator.refill(sizeClass, other);
+                }
+                loaded[sizeClass] = magazine = other;
+            }
+            return magazine.blocks[--magazine.count];
+        }
+
+        void free(SlabAllocator allocator, int sizeClass, long address) {
+            var magazine = loaded[sizeClass];
+            if (magazine.count == MAGAZINE_SIZE) {
+                var other = previous[sizeClass];
+                previous[sizeClass] = magazine;
+                if (other.count == MAGAZINE_SIZE) {
+                    other = allocator.depots[sizeClass].swapFull(other);
+                }
+                loaded[sizeClass] = magazine = other;
+            }
+            magazine.blocks[magazine.count++] = address;
+        }
+    }
+}
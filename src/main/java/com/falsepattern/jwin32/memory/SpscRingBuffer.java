@@ -0,0 +1,74 @@
+/*
+ * Copyright (c) 2021 FalsePattern
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.falsepattern.jwin32.memory;
+
+/**
+ * A single producer, single consumer {@link NativeRingBuffer}. Claiming and publishing must only be done by one thread
+ * at a time, and draining by one (other) thread at a time. Records are published by moving the producer counter with
+ * a release store, which the consumer reads with an acquire load.
+ */
+public final class SpscRingBuffer extends NativeRingBuffer {
+    //Producer side only. The consumer counter only ever grows, so a stale value just underestimates the free space.
+    private long claimed;
+    private long cachedConsumer;
+
+    /**
+     * @param allocator The allocator the buffer is taken from
+     * @param capacity The amount of records the buffer can hold, a power of two
+     * @param recordSize The size of a single record, in bytes
+     */
+    public SpscRingBuffer(MemoryAllocator allocator, int capacity, long recordSize) {
+        super(allocator, capacity, recordSize, 0);
+    }
+
+    @Override
+    public long tryClaim(int count) {
+        if (count <= 0 || count > capacity) throw new IllegalArgumentException("Invalid ring buffer claim count " + count);
+        var sequence = claimed;
+        if (sequence + count - cachedConsumer > capacity) {
+            cachedConsumer = (long) MemoryUtil.VH_LONG.getAcquire(segment, CONSUMER_OFFSET);
+            if (sequence + count - cachedConsumer > capacity) return -1;
+        }
+        claimed = sequence + count;
+        return sequence;
+    }
+
+    @Override
+    public void publish(long sequence, int count) {
+        MemoryUtil.VH_LONG.setRelease(segment, PRODUCER_OFFSET, sequence + count);
+    }
+
+    @Override
+    public int drain(RecordHandler handler, int limit) {
+        var consumer = (long) MemoryUtil.VH_LONG.getOpaque(segment, CONSUMER_OFFSET);
+        var producer = (long) MemoryUtil.VH_LONG.getAcquire(segment, PRODUCER_OFFSET);
+        var count = (int) Math.min(producer - consumer, limit);
+        for (int i = 0; i < count; i++) {
+            var sequence = consumer + i;
+            handler.onRecord(recordAddress(sequence), sequence);
+        }
+        if (count > 0) {
+            MemoryUtil.VH_LONG.setRelease(segment, CONSUMER_OFFSET, consumer + count);
+        }
+        return count;
+    }
+}
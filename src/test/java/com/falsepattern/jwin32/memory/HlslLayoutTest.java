@@ -0,0 +1,71 @@
+/*
+ * Copyright (c) 2021 FalsePattern
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.falsepattern.jwin32.memory;
+
+import org.junit.jupiter.api.Test;
+
+import static com.falsepattern.jwin32.memory.HlslLayout.Type.*;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class HlslLayoutTest {
+    @Test
+    void packsVectorsWithoutStraddlingRegisters() {
+        var layout = HlslLayout.cbuffer().add("a", FLOAT2).add("b", FLOAT4).add("c", FLOAT2).build();
+        assertEquals(0, layout.offsetOf("a"));
+        assertEquals(16, layout.offsetOf("b"));
+        assertEquals(32, layout.offsetOf("c"));
+        assertEquals(48, layout.size());
+    }
+
+    @Test
+    void packsScalarsIntoTheTailOfARegister() {
+        var layout = HlslLayout.cbuffer().add("a", FLOAT3).add("b", FLOAT).build();
+        assertEquals(12, layout.offsetOf("b"));
+        assertEquals(16, layout.size());
+    }
+
+    @Test
+    void startsArraysOnANewRegister() {
+        var layout = HlslLayout.cbuffer().add("a", FLOAT).add("b", FLOAT, 1).add("c", FLOAT, 4).add("d", FLOAT).build();
+        assertEquals(16, layout.offsetOf("b"));
+        assertEquals(32, layout.offsetOf("c"));
+        //The last array element is not padded
+        assertEquals(84, layout.offsetOf("d"));
+        assertEquals(96, layout.size());
+    }
+
+    @Test
+    void packsMatricesByMajorness() {
+        var layout = HlslLayout.cbuffer().add("m", FLOAT3X3).add("f", FLOAT).rowMajor().add("r", FLOAT3X4).build();
+        assertEquals(44, layout.offsetOf("f"));
+        assertEquals(48, layout.offsetOf("r"));
+        assertEquals(96, layout.size());
+    }
+
+    @Test
+    void packsVerticesTightly() {
+        var layout = HlslLayout.vertex().add("pos", FLOAT3).add("uv", FLOAT2).add("id", UINT).build();
+        assertEquals(12, layout.offsetOf("uv"));
+        assertEquals(20, layout.offsetOf("id"));
+        assertEquals(24, layout.size());
+    }
+}
@@ -0,0 +1,81 @@
+/*
+ * Copyright (c) 2021 FalsePattern
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.falsepattern.jwin32.memory;
+
+import org.junit.jupiter.api.Test;
+
+import static com.falsepattern.jwin32.memory.HlslLayout.Type.*;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+class HlslWriterTest {
+    @Test
+    void writesPaddedRows() {
+        var layout = HlslLayout.cbuffer().add("world", FLOAT4X4).add("light", FLOAT3).add("weights", FLOAT, 3).add("count", UINT).build();
+        try (var stack = MemoryStack.stackPush()) {
+            var writer = HlslWriter.allocate(layout, stack, 2);
+            var matrix = new float[16];
+            for (int i = 0; i < matrix.length; i++) {
+                matrix[i] = i;
+            }
+            writer.put(layout.field("world"), 1, matrix, 0);
+            writer.setFloat3(layout.field("light"), 1, 1, 2, 3);
+            writer.put(layout.field("weights"), 1, new float[]{5, 6, 7}, 0);
+            writer.setInt(layout.field("count"), 1, 42);
+            var segment = writer.segment();
+            var base = writer.offsetOf(1);
+            assertEquals(15, MemoryUtil.GetFloat(segment, base + 60));
+            assertEquals(3, MemoryUtil.GetFloat(segment, base + 72));
+            assertEquals(5, MemoryUtil.GetFloat(segment, base + 80));
+            assertEquals(6, MemoryUtil.GetFloat(segment, base + 96));
+            assertEquals(7, MemoryUtil.GetFloat(segment, base + 112));
+            assertEquals(42, MemoryUtil.GetInt(segment, base + 116));
+            assertEquals(0, MemoryUtil.GetFloat(segment, 0));
+        }
+    }
+
+    @Test
+    void scattersVertexStreams() {
+        var layout = HlslLayout.vertex().add("pos", FLOAT3).add("id", UINT).build();
+        try (var stack = MemoryStack.stackPush()) {
+            var writer = HlslWriter.allocate(layout, stack, 3);
+            writer.scatter(layout.field("pos"), 0, new float[]{1, 2, 3, 4, 5, 6, 7, 8, 9}, 0, 3);
+            writer.scatter(layout.field("id"), 0, new int[]{7, 8, 9}, 0, 3);
+            var segment = writer.segment();
+            assertEquals(4, MemoryUtil.GetFloat(segment, 16));
+            assertEquals(9, MemoryUtil.GetFloat(segment, 40));
+            assertEquals(8, MemoryUtil.GetInt(segment, 28));
+        }
+    }
+
+    @Test
+    void rejectsFieldsOfOtherLayouts() {
+        var layout = HlslLayout.cbuffer().add("a", FLOAT).add("b", FLOAT).build();
+        var other = HlslLayout.cbuffer().add("b", FLOAT).build();
+        try (var stack = MemoryStack.stackPush()) {
+            var writer = HlslWriter.allocate(layout, stack, 1);
+            assertThrows(IllegalArgumentException.class, () -> writer.setFloat(other.field("b"), 0, 1));
+            assertThrows(IllegalArgumentException.class, () -> writer.setInt(layout.field("a"), 0, 1));
+            assertThrows(IndexOutOfBoundsException.class, () -> writer.setFloat(layout.field("a"), 1, 1));
+        }
+    }
+}
@@ -0,0 +1,49 @@
+/*
+ * Copyright (c) 2021 FalsePattern
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.falsepattern.jwin32.memory;
+
+import org.junit.jupiter.api.Test;
+
+import java.nio.file.Files;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+class MappedFileAllocatorTest {
+    @Test
+    void sharesBuffersByName() throws Exception {
+        var name = "test-" + ProcessHandle.current().pid();
+        try (var writer = MappedFileAllocator.shared(name, 4096);
+             var reader = MappedFileAllocator.shared(name, 4096)) {
+            MemoryUtil.SetInt(writer.malloc(4), 0, 42);
+            assertEquals(42, MemoryUtil.GetInt(reader.malloc(4), 0));
+            Files.deleteIfExists(writer.path());
+        }
+    }
+
+    @Test
+    void rejectsNamesOutsideTheSharedMemoryDirectory() {
+        for (var name : new String[]{"", "../escape", "a/b", "a\\b", "..\\escape", "a:stream"}) {
+            assertThrows(IllegalArgumentException.class, () -> MappedFileAllocator.shared(name, 4096), name);
+        }
+    }
+}
@@ -0,0 +1,53 @@
+/*
+ * Copyright (c) 2021 FalsePattern
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.falsepattern.jwin32.memory;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+class NativeIntListTest {
+    @Test
+    void growsPastTheInitialCapacity() {
+        try (var list = new NativeIntList(MemoryUtil.instance, 2)) {
+            for (int i = 0; i < 100; i++) {
+                list.add(i);
+            }
+            list.addAll(new int[]{100, 101, 102}, 1, 2);
+            assertEquals(102, list.size());
+            assertEquals(99, list.get(99));
+            assertEquals(102, list.get(101));
+        }
+    }
+
+    @Test
+    void rejectedAppendsLeaveTheListUnchanged() {
+        try (var list = new NativeIntList(MemoryUtil.instance)) {
+            list.addAll(1, 2, 3);
+            assertThrows(IndexOutOfBoundsException.class, () -> list.addAll(new int[4], 0, -2));
+            assertThrows(IndexOutOfBoundsException.class, () -> list.addAll(new int[4], 2, 3));
+            assertArrayEquals(new int[]{1, 2, 3}, list.toArray());
+        }
+    }
+}
@@ -0,0 +1,117 @@
+/*
+ * Copyright (c) 2021 FalsePattern
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.falsepattern.jwin32.memory;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class NativeLongMapTest {
+    @Test
+    void matchesHashMapUnderRandomOperations() {
+        var random = new Random(1234);
+        var expected = new HashMap<Long, Long>();
+        try (var map = new NativeLongMap(MemoryUtil.instance, 4)) {
+            for (int i = 0; i < 200_000; i++) {
+                //A small key range including 0 and negative keys, so keys collide, get removed and come back
+                long key = random.nextInt(4096) - 2048;
+                long value = random.nextLong();
+                switch (random.nextInt(3)) {
+                    case 0 -> assertEquals(expected.put(key, value) == null, map.put(key, value));
+                    case 1 -> assertEquals(expected.remove(key) != null, map.remove(key));
+                    default -> assertEquals(expected.getOrDefault(key, -1L), map.get(key, -1));
+                }
+            }
+            assertContents(expected, map);
+        }
+    }
+
+    @Test
+    void concurrentMapMatchesPerThreadHashMaps() throws InterruptedException {
+        var threads = new Thread[8];
+        List<Map<Long, Long>> expected = new ArrayList<>();
+        try (var map = new ConcurrentNativeLongMap()) {
+            for (int t = 0; t < threads.length; t++) {
+                var reference = new HashMap<Long, Long>();
+                expected.add(reference);
+                var thread = t;
+                threads[t] = new Thread(() -> {
+                    var random = new Random(thread);
+                    for (int i = 0; i < 100_000; i++) {
+                        //Every thread owns the keys congruent to its index, but they all share the stripes
+                        long key = (random.nextInt(2048) * (long) threads.length) + thread;
+                        if (random.nextBoolean()) {
+                            reference.put(key, (long) i);
+                            map.put(key, i);
+                        } else {
+                            reference.remove(key);
+                            map.remove(key);
+                        }
+                    }
+                });
+            }
+            for (var thread : threads) thread.start();
+            for (var thread : threads) thread.join();
+            var merged = new HashMap<Long, Long>();
+            for (var reference : expected) merged.putAll(reference);
+            assertEquals(merged.size(), map.size());
+            merged.forEach((key, value) -> assertEquals(value, map.get(key, -1)));
+        }
+    }
+
+    @Test
+    void putIfAbsentAddsEveryKeyOnce() throws InterruptedException {
+        var added = new AtomicInteger();
+        try (var map = new ConcurrentNativeLongMap()) {
+            var threads = new Thread[8];
+            for (int t = 0; t < threads.length; t++) {
+                var thread = t;
+                threads[t] = new Thread(() -> {
+                    for (long key = 0; key < 10_000; key++) {
+                        if (map.putIfAbsent(key, thread)) added.incrementAndGet();
+                    }
+                });
+            }
+            for (var thread : threads) thread.start();
+            for (var thread : threads) thread.join();
+            assertEquals(10_000, added.get());
+            assertEquals(10_000, map.size());
+        }
+    }
+
+    private static void assertContents(Map<Long, Long> expected, NativeLongMap map) {
+        assertEquals(expected.size(), map.size());
+        var seen = new AtomicInteger();
+        map.forEach((key, value) -> {
+            assertEquals(expected.get(key), value);
+            seen.incrementAndGet();
+        });
+        assertEquals(expected.size(), seen.get());
+    }
+}
@@ -0,0 +1,51 @@
+/*
+ * Copyright (c) 2021 FalsePattern
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.falsepattern.jwin32.memory;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class NativeStringCacheTest {
+    @Test
+    void evictsTheLeastRecentlyUsedStrings() {
+        //Room for 8 strings of 8 bytes each, including the terminator
+        var cache = new NativeStringCache(64);
+        var hot = cache.ansi("hot0000");
+        var cold = cache.ansi("cold000");
+        for (int i = 0; i < 16; i++) {
+            assertSame(hot, cache.ansi("hot0000"));
+            cache.ansi("filler" + (char) ('a' + i));
+        }
+        assertTrue(cache.usedBytes() <= 64);
+        assertSame(hot, cache.ansi("hot0000"));
+        //The string whose insertion triggers an eviction must not evict itself
+        for (int i = 0; cache.usedBytes() < 64; i++) {
+            cache.ansi("padder" + (char) ('a' + i));
+        }
+        var trigger = cache.ansi("trigger");
+        assertSame(trigger, cache.ansi("trigger"));
+        assertNotSame(cold, cache.ansi("cold000"));
+    }
+}
@@ -0,0 +1,109 @@
+/*
+ * Copyright (c) 2021 FalsePattern
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.falsepattern.jwin32.memory;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class RingBufferTest {
+    private static final int RECORDS = 200_000;
+
+    @Test
+    void spscDeliversBatchesInOrder() throws InterruptedException {
+        try (var ring = new SpscRingBuffer(MemoryUtil.instance, 64, 8)) {
+            var producer = new Thread(() -> {
+                var random = new Random(42);
+                for (long next = 0; next < RECORDS; ) {
+                    var count = (int) Math.min(1 + random.nextInt(8), RECORDS - next);
+                    var sequence = ring.tryClaim(count);
+                    if (sequence < 0) {
+                        Thread.yield();
+                        continue;
+                    }
+                    for (int i = 0; i < count; i++) {
+                        MemoryUtil.SetLong(ring.recordAddress(sequence + i), next++);
+                    }
+                    ring.publish(sequence, count);
+                }
+            });
+            producer.start();
+            var expected = new long[1];
+            while (expected[0] < RECORDS) {
+                var drained = ring.drain((address, sequence) -> {
+                    assertEquals(expected[0], sequence);
+                    assertEquals(expected[0]++, MemoryUtil.GetLong(address));
+                }, 32);
+                if (drained == 0) Thread.yield();
+            }
+            producer.join();
+            assertEquals(0, ring.size());
+        }
+    }
+
+    @Test
+    void mpscKeepsEveryProducersOrder() throws InterruptedException {
+        var producers = new Thread[4];
+        var perProducer = RECORDS / producers.length;
+        try (var ring = new MpscRingBuffer(MemoryUtil.instance, 64, 16)) {
+            for (int p = 0; p < producers.length; p++) {
+                var id = p;
+                producers[p] = new Thread(() -> {
+                    var random = new Random(id);
+                    for (int next = 0; next < perProducer; ) {
+                        var count = Math.min(1 + random.nextInt(4), perProducer - next);
+                        var sequence = ring.tryClaim(count);
+                        if (sequence < 0) {
+                            Thread.yield();
+                            continue;
+                        }
+                        for (int i = 0; i < count; i++) {
+                            var record = ring.recordAddress(sequence + i);
+                            MemoryUtil.SetLong(record, id);
+                            MemoryUtil.SetLong(record + 8, next++);
+                        }
+                        ring.publish(sequence, count);
+                    }
+                });
+            }
+            for (var producer : producers) producer.start();
+            var nextExpected = new long[producers.length];
+            var nextSequence = new long[1];
+            while (nextSequence[0] < (long) perProducer * producers.length) {
+                var drained = ring.drain((address, sequence) -> {
+                    assertEquals(nextSequence[0]++, sequence);
+                    var id = (int) MemoryUtil.GetLong(address);
+                    assertEquals(nextExpected[id]++, MemoryUtil.GetLong(address + 8));
+                }, 32);
+                if (drained == 0) Thread.yield();
+            }
+            for (var producer : producers) producer.join();
+            for (var received : nextExpected) {
+                assertEquals(perProducer, received);
+            }
+            assertTrue(ring.tryClaim(ring.capacity()) >= 0);
+        }
+    }
+}
@@ -0,0 +1,51 @@
+/*
+ * Copyright (c) 2021 FalsePattern
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.falsepattern.jwin32.memory;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.HashSet;
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class SlabAllocatorTest {
+    @Test
+    void reusesBlocksCachedByDeadThreads() throws InterruptedException {
+        try (var allocator = new SlabAllocator()) {
+            Set<Long> freedByWorker = new HashSet<>();
+            var worker = new Thread(() -> {
+                var blocks = new long[48];
+                for (int i = 0; i < blocks.length; i++) {
+                    blocks[i] = allocator.nmalloc(16);
+                }
+                for (var block : blocks) {
+                    allocator.nfree(block, 16);
+                    freedByWorker.add(block);
+                }
+            });
+            worker.start();
+            worker.join();
+            assertTrue(freedByWorker.contains(allocator.nmalloc(16)));
+        }
+    }
+}